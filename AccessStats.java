@@ -0,0 +1,88 @@
+import java.util.*;
+
+// How often and how recently each credential of a vault has been revealed, to guess which
+// passwords are worth decrypting ahead of time. Each reveal adds one to a credential's
+// score, and scores halve every HALF_LIFE_MILLIS, so a credential used daily outranks one
+// used often a month ago. Only ids are kept, never names, and the scores are saved beside
+// the vault when it closes.
+public class AccessStats {
+    static final long HALF_LIFE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    // Credentials remembered when saving; the lowest scores are dropped beyond this
+    static final int MAX_TRACKED = 4096;
+
+    private final Map<Long, Score> scores = new HashMap<>();
+    private boolean dirty;
+
+    public synchronized void recordAccess(long id, long nowMillis) {
+        Score score = scores.get(id);
+        scores.put(id, new Score(score == null ? 1 : score.valueAt(nowMillis) + 1, nowMillis));
+        dirty = true;
+    }
+
+    // Forget a credential, e.g. once it has been removed
+    public synchronized void remove(long id) {
+        if (scores.remove(id) != null) {
+            dirty = true;
+        }
+    }
+
+    // Ids of the at most count highest scoring credentials, best first
+    public synchronized List<Long> top(int count, long nowMillis) {
+        List<Map.Entry<Long, Score>> ranked = rank(nowMillis);
+        List<Long> ids = new ArrayList<>(Math.min(count, ranked.size()));
+        for (int i = 0; i < ranked.size() && i < count; i++) {
+            ids.add(ranked.get(i).getKey());
+        }
+        return ids;
+    }
+
+    public synchronized int size() {
+        return scores.size();
+    }
+
+    // Whether anything changed since the stats were loaded or last saved
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    synchronized void markSaved() {
+        dirty = false;
+    }
+
+    // Restore a saved score
+    synchronized void put(long id, Score score) {
+        scores.put(id, score);
+    }
+
+    // Scores to save, best first, at most MAX_TRACKED
+    synchronized Map<Long, Score> snapshot(long nowMillis) {
+        List<Map.Entry<Long, Score>> ranked = rank(nowMillis);
+        Map<Long, Score> kept = new LinkedHashMap<>();
+        for (int i = 0; i < ranked.size() && i < MAX_TRACKED; i++) {
+            kept.put(ranked.get(i).getKey(), ranked.get(i).getValue());
+        }
+        return kept;
+    }
+
+    private List<Map.Entry<Long, Score>> rank(long nowMillis) {
+        List<Map.Entry<Long, Score>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort((a, b) -> Double.compare(b.getValue().valueAt(nowMillis), a.getValue().valueAt(nowMillis)));
+        return ranked;
+    }
+
+    static final class Score {
+        final double value;
+        final long lastAccessMillis;
+
+        Score(double value, long lastAccessMillis) {
+            this.value = value;
+            this.lastAccessMillis = lastAccessMillis;
+        }
+
+        // The score decayed to a point in time
+        double valueAt(long nowMillis) {
+            long elapsed = Math.max(0, nowMillis - lastAccessMillis);
+            return value * Math.pow(0.5, (double) elapsed / HALF_LIFE_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// CompletableFuture facade over PasswordManager for callers that must not block, such as the
+// Swing EDT. PasswordManager holds a single session, so calls run one at a time, in order,
+// on one worker thread with a bounded queue; a call that does not fit fails with
+// RejectedExecutionException instead of piling up.
+//
+// Cancelling a call that is still queued skips it. A call already running is never
+// interrupted, as that could abort a vault write half-way; its future completes as
+// cancelled right away and the work finishes in the background, with a cancelled
+// login logged out again.
+//
+// Password arrays passed in belong to this class from then on: they are wiped once the call
+// has run, or been skipped or rejected, so callers hand over what JPasswordField returned.
+public class AsyncPasswordManager {
+    private static final int QUEUE_CAPACITY = 32;
+
+    private final PasswordManager passwordManager;
+    private final ThreadPoolExecutor executor;
+
+    public AsyncPasswordManager(PasswordManager passwordManager) {
+        this.passwordManager = passwordManager;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+                    Thread thread = new Thread(r, "password-manager-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public CompletableFuture<PasswordManager.RegistrationResult> registerUser(String username, char[] password) {
+        return submit(() -> passwordManager.registerUser(username, password), null, password);
+    }
+
+    public CompletableFuture<PasswordManager.LoginResult> login(String username, char[] password) {
+        return submit(() -> passwordManager.login(username, password), result -> {
+            if (result == PasswordManager.LoginResult.SUCCESS) {
+                passwordManager.logout();
+            }
+        }, password);
+    }
+
+    public CompletableFuture<Void> logout() {
+        return submit(() -> {
+            passwordManager.logout();
+            return null;
+        }, null);
+    }
+
+    public CompletableFuture<PasswordManager.CredentialResult> addCredential(String serviceName, String username,
+                                                                             char[] password) {
+        return submit(() -> passwordManager.addCredential(serviceName, username, password), null, password);
+    }
+
+    public CompletableFuture<PasswordManager.CredentialResult> removeById(long id) {
+        return submit(() -> passwordManager.removeById(id), null);
+    }
+
+    public CompletableFuture<PasswordManager.PasswordRetrievalResult> getDecryptedPassword(
+            ServiceCredential credential, char[] masterPassword) {
+        return submit(() -> passwordManager.getDecryptedPassword(credential, masterPassword),
+                PasswordManager.PasswordRetrievalResult::close, masterPassword);
+    }
+
+    public CompletableFuture<PasswordManager.MasterPasswordChangeResult> changeMasterPassword(
+            char[] currentPassword, char[] newPassword) {
+        return submit(() -> passwordManager.changeMasterPassword(currentPassword, newPassword), null,
+                currentPassword, newPassword);
+    }
+
+    public CompletableFuture<List<ServiceCredential>> searchCredentials(String query, int limit) {
+        return submit(() -> passwordManager.searchCredentials(query, limit), null);
+    }
+
+    // The wrapped manager, for cheap reads such as the current user or the credential view
+    public PasswordManager getPasswordManager() {
+        return passwordManager;
+    }
+
+    // Run what is queued, then stop the worker, waiting up to the timeout
+    public void shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Passwords are wiped after the task, whether it ran or not
+    private <T> CompletableFuture<T> submit(Callable<T> task, Consumer<T> undoIfCancelled, char[]... passwords) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long queued = Metrics.start();
+        try {
+            executor.execute(() -> {
+                Metrics.TASK_QUEUE_WAIT.stop(queued);
+                try {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    T result = task.call();
+                    if (!future.complete(result) && future.isCancelled() && undoIfCancelled != null) {
+                        undoIfCancelled.accept(result);
+                    }
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    wipe(passwords);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            wipe(passwords);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static void wipe(char[][] passwords) {
+        for (char[] password : passwords) {
+            SecretBuffer.wipe(password);
+        }
+    }
+}
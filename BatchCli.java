@@ -0,0 +1,475 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Vault commands without the menus, for scripts: one login, then any number of commands read
+// from a file or standard input, one per line, with tab-separated results on standard output.
+// Logging in runs the deliberately slow key derivation once and loads the vault, which is most
+// of the cost of a single lookup, so a batch pays for it once instead of once per process.
+//
+//   java MainApp batch --user NAME [--password-file FILE] [COMMAND_FILE]
+//   java MainApp list|get|add|rm|import --user NAME [--password-file FILE] ARGS...
+//
+// The master password is read from the first line of the password file if one is given, else
+// from the terminal, else from the first line of standard input. Commands:
+//
+//   list [QUERY]                   id, service and username of every (or every matching) credential
+//   get SERVICE [USERNAME]         id, service, username and password of the service's credentials
+//   add SERVICE USERNAME PASSWORD  store a credential (in a command file or stream only)
+//   rm ID                          remove a credential
+//   import FILE                    import a .csv or .json file; prints the entries and skipped counts
+//
+// Words are separated by spaces; "..." keeps spaces in a word, and \" and \\ escape inside quotes.
+// Blank lines and lines starting with # are skipped. Tabs, newlines and backslashes inside an
+// output field are written as \t, \n and \\. A failed command is reported on the error output as
+// "line N: message" and the batch goes on. The exit status is 0 when every command succeeded,
+// 1 when any failed, and 2 when the arguments were wrong or the login failed.
+//
+// On the command line, add never takes the password itself, which other users could read in
+// the process list and which would stay in the shell history: "add SERVICE USERNAME [FILE|-]"
+// reads it from the first line of FILE, or with - or nothing, from the terminal, or else from
+// the next line of standard input, i.e. the one after the master password if that came first.
+public class BatchCli {
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private static final List<String> COMMANDS = Arrays.asList("list", "get", "add", "rm", "import");
+    private static final int SEARCH_RESULT_LIMIT = 100;
+
+    private final PasswordManager passwordManager;
+    private final char[] masterPassword;
+    private final PrintWriter out;
+    private final PrintStream err;
+    private int failures;
+
+    // Runs commands in a session that is already logged in; the caller keeps ownership of the
+    // master password and wipes it afterwards
+    public BatchCli(PasswordManager passwordManager, char[] masterPassword, PrintWriter out, PrintStream err) {
+        this.passwordManager = passwordManager;
+        this.masterPassword = masterPassword;
+        this.out = out;
+        this.err = err;
+    }
+
+    // Whether MainApp should hand its arguments to run
+    public static boolean isCommand(String arg) {
+        return arg.equals("batch") || COMMANDS.contains(arg);
+    }
+
+    // Log in, run the batch or the single command in args, log out; returns the exit status
+    public static int run(String[] args) {
+        String username = null;
+        String passwordFile = null;
+        List<String> words = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--user") && i + 1 < args.length) {
+                username = args[++i];
+            } else if (args[i].equals("--password-file") && i + 1 < args.length) {
+                passwordFile = args[++i];
+            } else {
+                words.add(args[i]);
+            }
+        }
+        boolean batch = args[0].equals("batch");
+        if (username == null || (batch && words.size() > 1)) {
+            System.err.println("Usage: java MainApp batch --user NAME [--password-file FILE] [COMMAND_FILE]");
+            System.err.println("   or: java MainApp list|get|rm|import --user NAME [--password-file FILE] ARGS...");
+            System.err.println("   or: java MainApp add --user NAME [--password-file FILE] SERVICE USERNAME [FILE|-]");
+            return EXIT_USAGE;
+        }
+
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        char[] password;
+        try {
+            password = readMasterPassword(passwordFile, stdin);
+        } catch (IOException e) {
+            System.err.println("Could not read the master password: " + e.getMessage());
+            return EXIT_USAGE;
+        }
+
+        PasswordManager passwordManager = new PasswordManager();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        try {
+            PasswordManager.LoginResult result = passwordManager.login(username, password);
+            if (result != PasswordManager.LoginResult.SUCCESS) {
+                System.err.println("Login failed: " + describe(result));
+                return EXIT_USAGE;
+            }
+            BatchCli cli = new BatchCli(passwordManager, password, out, System.err);
+            if (!batch) {
+                words.add(0, args[0]);
+                if (args[0].equals("add")) {
+                    cli.addFromInput(words, stdin);
+                } else {
+                    cli.execute(words, 0);
+                }
+            } else if (words.isEmpty()) {
+                cli.runAll(stdin);
+            } else {
+                try (BufferedReader commands = Files.newBufferedReader(Paths.get(words.get(0)), StandardCharsets.UTF_8)) {
+                    cli.runAll(commands);
+                }
+            }
+            return cli.getFailures() == 0 ? EXIT_OK : EXIT_FAILED;
+        } catch (IOException e) {
+            System.err.println("Error reading commands: " + e.getMessage());
+            return EXIT_FAILED;
+        } finally {
+            out.flush();
+            passwordManager.logout();
+            SecretBuffer.wipe(password);
+        }
+    }
+
+    // Run every command in the input, in order, until it ends
+    public void runAll(BufferedReader commands) throws IOException {
+        String line;
+        int lineNumber = 0;
+        while ((line = commands.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            List<String> words = split(trimmed);
+            if (words == null) {
+                fail(lineNumber, "unterminated quote");
+                continue;
+            }
+            execute(words, lineNumber);
+        }
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    // Run one command; lineNumber is only used in error messages, 0 for a command line argument
+    public void execute(List<String> words, int lineNumber) {
+        String command = words.get(0);
+        List<String> args = words.subList(1, words.size());
+        switch (command) {
+            case "list":
+                if (args.size() > 1) {
+                    fail(lineNumber, "usage: list [QUERY]");
+                } else {
+                    list(args.isEmpty() ? null : args.get(0));
+                }
+                break;
+            case "get":
+                if (args.isEmpty() || args.size() > 2) {
+                    fail(lineNumber, "usage: get SERVICE [USERNAME]");
+                } else {
+                    get(lineNumber, args.get(0), args.size() > 1 ? args.get(1) : null);
+                }
+                break;
+            case "add":
+                if (args.size() != 3) {
+                    fail(lineNumber, "usage: add SERVICE USERNAME PASSWORD");
+                } else {
+                    add(lineNumber, args.get(0), args.get(1), args.get(2));
+                }
+                break;
+            case "rm":
+                if (args.size() != 1) {
+                    fail(lineNumber, "usage: rm ID");
+                } else {
+                    remove(lineNumber, args.get(0));
+                }
+                break;
+            case "import":
+                if (args.size() != 1) {
+                    fail(lineNumber, "usage: import FILE");
+                } else {
+                    importFile(lineNumber, args.get(0));
+                }
+                break;
+            default:
+                fail(lineNumber, "unknown command: " + command);
+        }
+        // Hand each command's output on as it completes, for readers at the other end of a pipe
+        out.flush();
+    }
+
+    private void list(String query) {
+        List<ServiceCredential> credentials = query == null ? passwordManager.getCredentials()
+                : passwordManager.searchCredentials(query, SEARCH_RESULT_LIMIT);
+        for (ServiceCredential credential : credentials) {
+            writeCredential(credential);
+            out.write('\n');
+        }
+    }
+
+    private void get(int lineNumber, String serviceName, String username) {
+        boolean found = false;
+        for (ServiceCredential credential : passwordManager.findByService(serviceName)) {
+            if (username != null && !credential.getUsername().equalsIgnoreCase(username)) {
+                continue;
+            }
+            found = true;
+            try (PasswordManager.PasswordRetrievalResult result =
+                         passwordManager.getDecryptedPassword(credential, masterPassword)) {
+                if (!result.isSuccess()) {
+                    fail(lineNumber, describe(result.getResult()));
+                    return;
+                }
+                char[] password = result.getPasswordChars();
+                writeCredential(credential);
+                out.write('\t');
+                writeField(password);
+                out.write('\n');
+                SecretBuffer.wipe(password);
+            }
+        }
+        if (!found) {
+            fail(lineNumber, "no credential for " + serviceName + (username == null ? "" : " and " + username));
+        }
+    }
+
+    // add given on the command line, with the password read from the file named by its last
+    // argument, or with - or none, from the terminal or the next line of standard input
+    public void addFromInput(List<String> words, Reader stdin) {
+        if (words.size() < 3 || words.size() > 4) {
+            fail(0, "usage: add SERVICE USERNAME [FILE|-]");
+            return;
+        }
+        char[] password;
+        try {
+            password = readPassword(words.size() == 4 ? words.get(3) : "-", stdin,
+                    "Password for " + words.get(1) + ": ");
+        } catch (IOException e) {
+            // The message would name the file, which may be a password typed in the wrong place
+            fail(0, "could not read the password");
+            return;
+        }
+        try {
+            add(0, words.get(1), words.get(2), password);
+        } finally {
+            SecretBuffer.wipe(password);
+        }
+        out.flush();
+    }
+
+    private void add(int lineNumber, String serviceName, String username, String password) {
+        char[] chars = SecretBuffer.chars(password);
+        try {
+            add(lineNumber, serviceName, username, chars);
+        } finally {
+            SecretBuffer.wipe(chars);
+        }
+    }
+
+    private void add(int lineNumber, String serviceName, String username, char[] password) {
+        PasswordManager.CredentialResult result = passwordManager.addCredential(serviceName, username, password);
+        if (result != PasswordManager.CredentialResult.SUCCESS) {
+            fail(lineNumber, describe(result));
+        }
+    }
+
+    private void remove(int lineNumber, String id) {
+        long parsed;
+        try {
+            parsed = Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            fail(lineNumber, "not a credential id: " + id);
+            return;
+        }
+        PasswordManager.CredentialResult result = passwordManager.removeById(parsed);
+        if (result == PasswordManager.CredentialResult.NOT_FOUND) {
+            fail(lineNumber, "no credential with id " + parsed);
+        } else if (result != PasswordManager.CredentialResult.SUCCESS) {
+            fail(lineNumber, describe(result));
+        }
+    }
+
+    private void importFile(int lineNumber, String fileName) {
+        Path path = Paths.get(fileName);
+        if (!Files.isRegularFile(path)) {
+            fail(lineNumber, "file not found: " + fileName);
+            return;
+        }
+        CredentialTransfer.Report report;
+        try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            report = passwordManager.importCredentials(in, CredentialTransfer.Format.forFileName(fileName));
+        } catch (IOException e) {
+            fail(lineNumber, "error reading " + fileName + ": " + e.getMessage());
+            return;
+        }
+        if (report.getResult() != PasswordManager.CredentialResult.SUCCESS) {
+            fail(lineNumber, describe(report.getResult()) + (report.getError() == null ? "" : ": " + report.getError()));
+            return;
+        }
+        out.print(report.getEntries());
+        out.write('\t');
+        out.print(report.getSkipped());
+        out.write('\n');
+        if (report.getError() != null) {
+            fail(lineNumber, "stopped early: " + report.getError());
+        }
+    }
+
+    private void writeCredential(ServiceCredential credential) {
+        out.print(credential.getId());
+        out.write('\t');
+        writeField(credential.getServiceName());
+        out.write('\t');
+        writeField(credential.getUsername());
+    }
+
+    private void writeField(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            writeEscaped(value.charAt(i));
+        }
+    }
+
+    private void writeField(char[] value) {
+        for (char c : value) {
+            writeEscaped(c);
+        }
+    }
+
+    private void writeEscaped(char c) {
+        switch (c) {
+            case '\t':
+                out.write("\\t");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            default:
+                out.write(c);
+        }
+    }
+
+    private void fail(int lineNumber, String message) {
+        failures++;
+        out.flush();
+        err.println(lineNumber > 0 ? "line " + lineNumber + ": " + message : message);
+    }
+
+    // Split a command into words, or return null if a quote is not closed
+    static List<String> split(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    quoted = false;
+                } else if (c == '\\' && i + 1 < line.length()
+                        && (line.charAt(i + 1) == '"' || line.charAt(i + 1) == '\\')) {
+                    word.append(line.charAt(++i));
+                } else {
+                    word.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                inWord = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    // The password file's first line, or the terminal, or the first line of standard input.
+    // The caller wipes the returned array.
+    private static char[] readMasterPassword(String passwordFile, Reader stdin) throws IOException {
+        return readPassword(passwordFile == null ? "-" : passwordFile, stdin, "Master password: ");
+    }
+
+    // The first line of a file, or for "-" the terminal or else the next line of standard input
+    private static char[] readPassword(String source, Reader stdin, String prompt) throws IOException {
+        if (!source.equals("-")) {
+            try (Reader in = Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8)) {
+                return readSecretLine(in);
+            }
+        }
+        Console console = System.console();
+        if (console != null) {
+            char[] password = console.readPassword(prompt);
+            return password != null ? password : new char[0];
+        }
+        return readSecretLine(stdin);
+    }
+
+    // One line of input as characters, without its line break; it never becomes a String
+    private static char[] readSecretLine(Reader in) throws IOException {
+        char[] line = new char[64];
+        int length = 0;
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (length == line.length) {
+                char[] grown = Arrays.copyOf(line, length * 2);
+                SecretBuffer.wipe(line);
+                line = grown;
+            }
+            line[length++] = (char) c;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        char[] password = Arrays.copyOf(line, length);
+        SecretBuffer.wipe(line);
+        return password;
+    }
+
+    private static String describe(PasswordManager.LoginResult result) {
+        switch (result) {
+            case USER_NOT_FOUND:
+                return "user not found";
+            case INVALID_PASSWORD:
+                return "invalid password";
+            case EMPTY_CREDENTIALS:
+                return "username and password cannot be empty";
+            case VAULT_IN_USE:
+                return "the vault is open in another program";
+            case VAULT_CORRUPTED:
+                return "the vault file is damaged";
+            default:
+                return result.toString();
+        }
+    }
+
+    private static String describe(PasswordManager.CredentialResult result) {
+        switch (result) {
+            case NOT_LOGGED_IN:
+                return "not logged in";
+            case EMPTY_FIELDS:
+                return "all fields are required";
+            case INVALID_MASTER_PASSWORD:
+                return "invalid master password";
+            case ENCRYPTION_ERROR:
+                return "encryption error";
+            case IO_ERROR:
+                return "could not save the change to disk";
+            default:
+                return result.toString();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.*;
+import java.util.function.Consumer;
+import javax.crypto.SecretKey;
+
+// One-pass bulk operations over a whole vault. Plaintext goes through a single reused
+// buffer and this thread's cached GCM cipher, so the loop is dominated by the JDK's
+// AES-NI/CLMUL intrinsics rather than allocation, String conversion or provider lookups.
+public class BulkCrypto {
+
+    // Re-encrypt every credential under a new key, streaming results to a sink in order.
+    // CBC records come out as AES-GCM bound to their service name and username.
+    public static void reencrypt(Iterable<ServiceCredential> credentials, SecretKey from, SecretKey to,
+                                 Consumer<ServiceCredential> sink) {
+        byte[] plaintext = new byte[256];
+        try {
+            for (ServiceCredential credential : credentials) {
+                CryptoUtil.EncryptedData encrypted = credential.getEncryptedPassword();
+                if (plaintext.length < encrypted.getData().length) {
+                    Arrays.fill(plaintext, (byte) 0);
+                    plaintext = new byte[encrypted.getData().length];
+                }
+                byte[] aad = credential.getAssociatedData();
+                int length = CryptoUtil.decrypt(encrypted, from, aad, plaintext);
+                sink.accept(new ServiceCredential(credential.getId(), credential.getServiceName(),
+                        credential.getUsername(), CryptoUtil.encrypt(plaintext, 0, length, to, aad)));
+            }
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    // Re-encrypt a whole vault into a new list
+    public static List<ServiceCredential> reencrypt(List<ServiceCredential> credentials, SecretKey from, SecretKey to) {
+        List<ServiceCredential> result = new ArrayList<>(credentials.size());
+        reencrypt(credentials, from, to, result::add);
+        return result;
+    }
+}
@@ -0,0 +1,536 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Append-only log of credential mutations for one user. Each add/remove is written
+// as a small framed record instead of rewriting the whole vault; once enough records
+// pile up the log is folded into a fresh snapshot on a background thread.
+//
+// Records are buffered when they are recorded and reach the disk when sync() is called.
+// Sessions call sync() after releasing the vault lock, so while one fsync runs the records
+// of other sessions pile up behind it and are made durable together by the next. In
+// write-behind mode VaultStore calls it on a timer instead.
+public class CredentialJournal implements Closeable {
+    // OP_ADD records predate cipher schemes and are always CBC. An added credential's id is
+    // the sequence number of its record. OP_REMOVE addresses a position and is only replayed.
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_ADD_WITH_SCHEME = 3;
+    private static final byte OP_REMOVE_BY_ID = 4;
+    private static final int COMPACTION_THRESHOLD = 1000;
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+    // Service names and usernames are written with writeUTF, which takes at most this many bytes
+    static final int MAX_FIELD_BYTES = 65535;
+
+    // A single background thread compacts journals for every user
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "credential-journal-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String username;
+    private final Path logPath;
+    private final Path compactingPath;
+    private List<ServiceCredential> recoveredCredentials;
+    private byte[] keyCheck;
+    private DataOutputStream log;
+    private FileChannel channel;
+    private long nextSequence;
+    private int pendingRecords;
+    private Future<?> compaction;
+    // Set when a write, flush or fsync of the log failed; the log may end in some of the
+    // records, so nothing more is appended, flushed or folded into a snapshot and the
+    // session's changes fail until the vault is reopened
+    private IOException writeFailure;
+
+    // Guards the group commit state; taken inside the journal's own monitor, never around it
+    private final Object syncLock = new Object();
+    private long durableSequence;
+    private boolean syncing;
+
+    private CredentialJournal(String username) {
+        this.username = username;
+        this.logPath = FileManager.getJournalPath(username);
+        this.compactingPath = FileManager.getCompactingJournalPath(username);
+    }
+
+    // Load the snapshot, replay the journal tail on top of it and open the log for appending
+    public static CredentialJournal open(String username) {
+        return open(username, null);
+    }
+
+    // As open(username), first settling a staged vault left by an interrupted key change:
+    // it is swapped in if it is under the account's current key, and dropped otherwise
+    public static CredentialJournal open(String username, byte[] accountKeyCheck) {
+        byte[] stagedKeyCheck = FileManager.readStagedKeyCheck(username);
+        if (stagedKeyCheck != null && accountKeyCheck != null && Arrays.equals(stagedKeyCheck, accountKeyCheck)) {
+            FileManager.commitStagedCredentials(username);
+        } else {
+            FileManager.discardStagedCredentials(username);
+        }
+
+        CredentialJournal journal = new CredentialJournal(username);
+        try {
+            journal.recover();
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening credential journal", e);
+        }
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        FileManager.CredentialSnapshot snapshot = FileManager.loadUserCredentials(username);
+        recoveredCredentials = snapshot.getCredentials();
+        keyCheck = snapshot.getKeyCheck();
+        nextSequence = snapshot.getJournalSequence() + 1;
+
+        long started = Metrics.start();
+        // A log left over from an interrupted compaction is older than the live one
+        if (Files.exists(compactingPath)) {
+            replay(compactingPath, snapshot.getJournalSequence());
+        }
+        if (Files.exists(logPath)) {
+            long validLength = replay(logPath, snapshot.getJournalSequence());
+            // Drop a torn record at the tail so new appends stay readable
+            try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+                if (channel.size() > validLength) {
+                    channel.truncate(validLength);
+                    channel.force(true);
+                }
+            }
+        }
+        Metrics.JOURNAL_REPLAY.stop(started);
+        openLog();
+        durableSequence = nextSequence - 1;
+    }
+
+    // Apply every intact record newer than the snapshot, returning the length of the valid prefix
+    private long replay(Path path, long snapshotSequence) throws IOException {
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+                int checksum = in.readInt();
+                byte[] payload = new byte[length];
+                try {
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (checksum != checksum(payload)) {
+                    break;
+                }
+
+                long sequence = apply(payload, snapshotSequence);
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                pendingRecords++;
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // Torn frame header; everything before it is still good
+        }
+        return validLength;
+    }
+
+    private long apply(byte[] payload, long snapshotSequence) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long sequence = in.readLong();
+        if (sequence <= snapshotSequence) {
+            return sequence;
+        }
+
+        byte op = in.readByte();
+        if (op == OP_ADD || op == OP_ADD_WITH_SCHEME) {
+            CryptoUtil.CipherScheme scheme = op == OP_ADD_WITH_SCHEME
+                    ? VaultCodec.readScheme(in) : CryptoUtil.CipherScheme.AES_CBC;
+            String serviceName = in.readUTF();
+            String serviceUsername = in.readUTF();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            byte[] iv = new byte[in.readInt()];
+            in.readFully(iv);
+            recoveredCredentials.add(new ServiceCredential(sequence, serviceName, serviceUsername,
+                    new CryptoUtil.EncryptedData(scheme, data, iv)));
+        } else if (op == OP_REMOVE) {
+            int index = in.readInt();
+            if (index >= 0 && index < recoveredCredentials.size()) {
+                recoveredCredentials.remove(index);
+            }
+        } else if (op == OP_REMOVE_BY_ID) {
+            int index = CredentialRepository.indexOf(recoveredCredentials, in.readLong());
+            if (index >= 0) {
+                recoveredCredentials.remove(index);
+            }
+        }
+        return sequence;
+    }
+
+    // Credentials as they stood when the journal was opened (snapshot plus replayed tail)
+    public List<ServiceCredential> getRecoveredCredentials() {
+        return recoveredCredentials;
+    }
+
+    // Key check of the key the vault is encrypted under, or null if no snapshot recorded one
+    public synchronized byte[] getKeyCheck() {
+        return keyCheck;
+    }
+
+    // Key check to record in future snapshots
+    public synchronized void setKeyCheck(byte[] keyCheck) {
+        this.keyCheck = keyCheck;
+    }
+
+    // Synchronously replace the whole vault, e.g. after re-encrypting it under a new key.
+    // The snapshot covers every record written so far, so the logs are discarded afterwards.
+    public synchronized void rewrite(List<ServiceCredential> credentials, byte[] keyCheck) {
+        checkWritable();
+        awaitCompaction();
+        FileManager.saveUserCredentials(username, credentials, nextSequence - 1, keyCheck);
+        this.keyCheck = keyCheck;
+        resetLogs();
+    }
+
+    // First half of a two-step replacement: write the new vault beside the live one. The
+    // caller persists whatever makes the new key current, then calls commitStagedRewrite.
+    public synchronized void stageRewrite(List<ServiceCredential> credentials, byte[] keyCheck) {
+        checkWritable();
+        awaitCompaction();
+        FileManager.saveStagedCredentials(username, credentials, nextSequence - 1, keyCheck);
+    }
+
+    public synchronized void commitStagedRewrite(byte[] keyCheck) {
+        FileManager.commitStagedCredentials(username);
+        this.keyCheck = keyCheck;
+        resetLogs();
+    }
+
+    private void resetLogs() {
+        try {
+            // The snapshot just written holds every record
+            markDurable();
+            log.close();
+            Files.deleteIfExists(compactingPath);
+            Files.deleteIfExists(logPath);
+            openLog();
+            pendingRecords = 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Error rewriting credential journal", e);
+        }
+    }
+
+    // Record that a credential was appended to the end of the vault, returning it under its new id
+    public synchronized ServiceCredential recordAdd(ServiceCredential credential) {
+        return appendAdd(credential);
+    }
+
+    // Record a batch of appended credentials, returning them under their new ids in order.
+    // Every record is encoded before any is written, so a credential that cannot be recorded
+    // fails the whole batch with nothing appended, and the caller's vault still matches the
+    // journal. A crash part-way leaves a prefix of the batch, as replay stops at a torn record.
+    public synchronized ServiceCredential[] recordAddAll(ServiceCredential[] credentials) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream(credentials.length * 128);
+        ServiceCredential[] added = new ServiceCredential[credentials.length];
+        for (int i = 0; i < credentials.length; i++) {
+            long id = nextSequence + i;
+            byte[] record = encode(id, OP_ADD_WITH_SCHEME, addBody(credentials[i]));
+            records.write(record, 0, record.length);
+            added[i] = credentials[i].withId(id);
+        }
+        write(records.toByteArray(), credentials.length);
+        return added;
+    }
+
+    private ServiceCredential appendAdd(ServiceCredential credential) {
+        long id = nextSequence;
+        append(OP_ADD_WITH_SCHEME, addBody(credential));
+        return credential.withId(id);
+    }
+
+    private static RecordBody addBody(ServiceCredential credential) {
+        CryptoUtil.EncryptedData encrypted = credential.getEncryptedPassword();
+        return out -> {
+            out.writeByte(encrypted.getScheme().getId());
+            out.writeUTF(credential.getServiceName());
+            out.writeUTF(credential.getUsername());
+            out.writeInt(encrypted.getData().length);
+            out.write(encrypted.getData());
+            out.writeInt(encrypted.getIv().length);
+            out.write(encrypted.getIv());
+        };
+    }
+
+    // Record that the credential with the given id was removed
+    public synchronized void recordRemove(long id) {
+        append(OP_REMOVE_BY_ID, out -> out.writeLong(id));
+    }
+
+    // Whether the log failed, leaving changes recorded in memory that may not be on disk
+    public synchronized boolean isFailed() {
+        return writeFailure != null;
+    }
+
+    // Whether records were written since the last sync
+    public boolean isDirty() {
+        long written;
+        synchronized (this) {
+            written = nextSequence - 1;
+        }
+        synchronized (syncLock) {
+            return durableSequence < written;
+        }
+    }
+
+    // Wait until every record written so far is on disk. A caller arriving while an fsync is
+    // running waits for it, then the first waiter left behind runs one fsync for all of them.
+    public void sync() {
+        long target;
+        synchronized (this) {
+            target = nextSequence - 1;
+        }
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && durableSequence < target) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted while syncing credential journal", e);
+                    }
+                }
+                if (durableSequence >= target) {
+                    return;
+                }
+                syncing = true;
+            }
+
+            long covered = 0;
+            FileChannel syncChannel = null;
+            IOException failure = null;
+            boolean closed = false;
+            synchronized (this) {
+                try {
+                    if (writeFailure != null) {
+                        // A retried flush could write the tail of a half-written record
+                        failure = writeFailure;
+                    } else {
+                        log.flush();
+                        covered = nextSequence - 1;
+                        syncChannel = channel;
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    writeFailure = e;
+                }
+            }
+            try {
+                if (failure == null) {
+                    long started = Metrics.start();
+                    syncChannel.force(false);
+                    Metrics.JOURNAL_SYNC.stop(started);
+                }
+            } catch (ClosedChannelException e) {
+                // Rotated or closed in the meantime, which forces the log first
+                closed = true;
+            } catch (IOException e) {
+                failure = e;
+                synchronized (this) {
+                    if (writeFailure == null) {
+                        writeFailure = e;
+                    }
+                }
+            }
+            synchronized (syncLock) {
+                syncing = false;
+                if (failure == null && !closed) {
+                    durableSequence = Math.max(durableSequence, covered);
+                }
+                if (closed && durableSequence < target) {
+                    failure = new IOException("Journal closed before it was synced");
+                }
+                syncLock.notifyAll();
+            }
+            if (failure != null) {
+                throw new RuntimeException("Error syncing credential journal", failure);
+            }
+        }
+    }
+
+    // Everything written so far is on disk; called with the journal's monitor held
+    private void markDurable() {
+        synchronized (syncLock) {
+            durableSequence = Math.max(durableSequence, nextSequence - 1);
+        }
+    }
+
+    private void append(byte op, RecordBody body) {
+        write(encode(nextSequence, op, body), 1);
+    }
+
+    // A framed record: payload length, checksum, then sequence, op and body
+    private static byte[] encode(long sequence, byte op, RecordBody body) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeLong(sequence);
+            out.writeByte(op);
+            body.write(out);
+            byte[] payload = buffer.toByteArray();
+            if (payload.length > MAX_RECORD_LENGTH) {
+                // Replay would take it for a torn record and drop it with everything after it
+                throw new IllegalArgumentException("Credential record too large: " + payload.length + " bytes");
+            }
+
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(8 + payload.length);
+            DataOutputStream frame = new DataOutputStream(framed);
+            frame.writeInt(payload.length);
+            frame.writeInt(checksum(payload));
+            frame.write(payload);
+            return framed.toByteArray();
+        } catch (IOException e) {
+            // Only writeUTF fails here, for a field over 64 KB
+            throw new IllegalArgumentException("Cannot encode credential record: " + e.getMessage(), e);
+        }
+    }
+
+    // Append count encoded records, numbered from nextSequence on
+    private void write(byte[] records, int count) {
+        checkWritable();
+        try {
+            log.write(records);
+        } catch (IOException e) {
+            writeFailure = e;
+            throw new RuntimeException("Error writing credential journal", e);
+        }
+        Metrics.JOURNAL_BYTES.add(records.length);
+        nextSequence += count;
+        pendingRecords += count;
+    }
+
+    private void checkWritable() {
+        if (writeFailure != null) {
+            throw new RuntimeException("Credential journal failed earlier; reopen the vault", writeFailure);
+        }
+    }
+
+    // Fold the log into a new snapshot in the background once it has grown large enough.
+    // The caller passes the current in-memory vault, which already reflects every record.
+    public synchronized void compactIfNeeded(List<ServiceCredential> credentials) {
+        if (pendingRecords < COMPACTION_THRESHOLD || (compaction != null && !compaction.isDone())
+                || writeFailure != null) {
+            return;
+        }
+
+        try {
+            // Rotate so that new mutations land in a fresh log while the old one is folded
+            log.flush();
+            channel.force(false);
+            markDurable();
+            log.close();
+            if (Files.exists(compactingPath)) {
+                // A previous compaction failed; carry its records forward with ours
+                try (FileChannel compacting = FileChannel.open(compactingPath, StandardOpenOption.APPEND)) {
+                    ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(logPath));
+                    while (records.hasRemaining()) {
+                        compacting.write(records);
+                    }
+                    compacting.force(false);
+                }
+                Files.delete(logPath);
+            } else {
+                Files.move(logPath, compactingPath);
+            }
+            openLog();
+        } catch (IOException e) {
+            writeFailure = e;
+            throw new RuntimeException("Error rotating credential journal", e);
+        }
+
+        List<ServiceCredential> snapshot = new ArrayList<>(credentials);
+        long snapshotSequence = nextSequence - 1;
+        byte[] snapshotKeyCheck = keyCheck;
+        pendingRecords = 0;
+        compaction = COMPACTOR.submit(() -> {
+            FileManager.saveUserCredentials(username, snapshot, snapshotSequence, snapshotKeyCheck);
+            Files.deleteIfExists(compactingPath);
+            return null;
+        });
+    }
+
+    // Close the log, waiting for an in-flight compaction so the next open sees a settled state
+    @Override
+    public synchronized void close() {
+        if (writeFailure != null) {
+            // Drop the buffered records instead of flushing them after the ones that failed
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing credential journal: " + e.getMessage());
+            }
+            awaitCompaction();
+            return;
+        }
+        try {
+            log.flush();
+            channel.force(false);
+            markDurable();
+            log.close();
+        } catch (IOException e) {
+            System.err.println("Error closing credential journal: " + e.getMessage());
+        }
+        awaitCompaction();
+    }
+
+    private void awaitCompaction() {
+        if (compaction != null) {
+            try {
+                compaction.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                System.err.println("Error compacting credential journal: " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    private void openLog() throws IOException {
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        log = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        // Makes a newly created or renamed log survive a crash
+        FileManager.syncDirectory(logPath.getParent());
+    }
+
+    // Length of a string as writeUTF encodes it (modified UTF-8)
+    static long encodedLength(String value) {
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private interface RecordBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
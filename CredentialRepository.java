@@ -0,0 +1,334 @@
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// The logged-in user's credentials in vault order, addressable by stable id. Vault order is
+// id order, so an id is found by binary search without any extra structure. The hash indexes
+// on service name and username and the sorted service index are built on the first query,
+// since building them decodes every record of a lazily mapped vault, and are kept up to date
+// on every add and remove from then on. Name lookups ignore case. The fuzzy search index is
+// likewise built on the first search.
+//
+// Adds and removes take a write lock; lookups, searches and the read-only view() take the
+// read lock, so a table on the EDT can read the live list while a worker thread mutates it.
+// Lazy index builds are serialized among readers by a separate monitor.
+public class CredentialRepository {
+    private List<ServiceCredential> credentials;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object indexBuild = new Object();
+    private Map<String, List<ServiceCredential>> byService;
+    private Map<String, List<ServiceCredential>> byUsername;
+    // Shares its buckets with byService
+    private TreeMap<String, List<ServiceCredential>> sortedByService;
+    private CredentialSearchIndex searchIndex;
+
+    public CredentialRepository(List<ServiceCredential> credentials) {
+        this.credentials = credentials;
+    }
+
+    // Position of the credential with the given id in a list sorted by id, or -1
+    public static int indexOf(List<ServiceCredential> credentials, long id) {
+        int low = 0;
+        int high = credentials.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = credentials.get(middle).getId();
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    // The backing list in vault order, for the thread that mutates the repository;
+    // callers must not modify it
+    public List<ServiceCredential> asList() {
+        return credentials;
+    }
+
+    // Read-only view that is safe to read from other threads while this one is mutated
+    public List<ServiceCredential> view() {
+        return new AbstractList<ServiceCredential>() {
+            @Override
+            public ServiceCredential get(int index) {
+                lock.readLock().lock();
+                try {
+                    return credentials.get(index);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            @Override
+            public int size() {
+                return CredentialRepository.this.size();
+            }
+        };
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return credentials.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public ServiceCredential get(int index) {
+        lock.readLock().lock();
+        try {
+            return credentials.get(index);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public ServiceCredential findById(long id) {
+        lock.readLock().lock();
+        try {
+            int index = indexOf(credentials, id);
+            return index >= 0 ? credentials.get(index) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Up to limit credentials from a position in vault order, copied under the lock so a
+    // concurrent remove cannot shift or shrink the list while the range is read
+    public List<ServiceCredential> range(int offset, int limit) {
+        lock.readLock().lock();
+        try {
+            int from = Math.min(Math.max(offset, 0), credentials.size());
+            int to = (int) Math.min((long) from + Math.max(limit, 0), credentials.size());
+            return new ArrayList<>(credentials.subList(from, to));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Up to limit credentials with ids from fromId on, in id order; paging by id rather than
+    // position stays consistent when other credentials are added or removed in between
+    public List<ServiceCredential> page(long fromId, int limit) {
+        lock.readLock().lock();
+        try {
+            int low = 0;
+            int high = credentials.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (credentials.get(middle).getId() < fromId) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return new ArrayList<>(credentials.subList(low, Math.min(low + limit, credentials.size())));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The credential must carry an id greater than every id already present
+    public void add(ServiceCredential credential) {
+        lock.writeLock().lock();
+        try {
+            credentials.add(credential);
+            if (byService != null) {
+                addToIndexes(credential);
+            }
+            if (searchIndex != null) {
+                searchIndex.add(credential);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // As add, for a batch in id order, under a single lock acquisition
+    public void addAll(ServiceCredential[] batch) {
+        lock.writeLock().lock();
+        try {
+            for (ServiceCredential credential : batch) {
+                credentials.add(credential);
+                if (byService != null) {
+                    addToIndexes(credential);
+                }
+                if (searchIndex != null) {
+                    searchIndex.add(credential);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public ServiceCredential removeById(long id) {
+        lock.writeLock().lock();
+        try {
+            int index = indexOf(credentials, id);
+            if (index < 0) {
+                return null;
+            }
+            ServiceCredential removed = credentials.remove(index);
+            if (byService != null) {
+                String service = key(removed.getServiceName());
+                if (removeFromIndex(byService, service, id)) {
+                    sortedByService.remove(service);
+                }
+                removeFromIndex(byUsername, key(removed.getUsername()), id);
+            }
+            if (searchIndex != null) {
+                searchIndex.remove(id);
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<ServiceCredential> findByService(String serviceName) {
+        lock.readLock().lock();
+        try {
+            buildIndexes();
+            return copyOf(byService.get(key(serviceName)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<ServiceCredential> findByUsername(String username) {
+        lock.readLock().lock();
+        try {
+            buildIndexes();
+            return copyOf(byUsername.get(key(username)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Credentials whose service name starts with the prefix, ordered by service name
+    public List<ServiceCredential> findByServicePrefix(String prefix) {
+        lock.readLock().lock();
+        try {
+            buildIndexes();
+            String from = key(prefix);
+            List<ServiceCredential> matches = new ArrayList<>();
+            String to = from + Character.MAX_VALUE;
+            for (List<ServiceCredential> bucket : sortedByService.subMap(from, true, to, false).values()) {
+                matches.addAll(bucket);
+            }
+            return matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Ranked type-ahead and fuzzy search over service names and usernames
+    public List<ServiceCredential> search(String query, int limit) {
+        lock.readLock().lock();
+        try {
+            synchronized (indexBuild) {
+                if (searchIndex == null) {
+                    CredentialSearchIndex index = new CredentialSearchIndex();
+                    for (ServiceCredential credential : credentials) {
+                        index.add(credential);
+                    }
+                    searchIndex = index;
+                }
+            }
+            return searchIndex.search(query, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Swap in a whole new list, e.g. the vault re-encrypted under a new key; views stay valid
+    public void replace(List<ServiceCredential> replacement) {
+        lock.writeLock().lock();
+        try {
+            credentials = replacement;
+            byService = null;
+            byUsername = null;
+            sortedByService = null;
+            searchIndex = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            credentials.clear();
+            byService = null;
+            byUsername = null;
+            sortedByService = null;
+            searchIndex = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Called under the read lock; the indexes are published only once complete
+    private void buildIndexes() {
+        synchronized (indexBuild) {
+            if (byService != null) {
+                return;
+            }
+            Map<String, List<ServiceCredential>> services = new HashMap<>();
+            Map<String, List<ServiceCredential>> usernames = new HashMap<>();
+            TreeMap<String, List<ServiceCredential>> sorted = new TreeMap<>();
+            for (ServiceCredential credential : credentials) {
+                addToIndexes(services, usernames, sorted, credential);
+            }
+            byUsername = usernames;
+            sortedByService = sorted;
+            byService = services;
+        }
+    }
+
+    private void addToIndexes(ServiceCredential credential) {
+        addToIndexes(byService, byUsername, sortedByService, credential);
+    }
+
+    private static void addToIndexes(Map<String, List<ServiceCredential>> byService,
+                                      Map<String, List<ServiceCredential>> byUsername,
+                                      TreeMap<String, List<ServiceCredential>> sortedByService,
+                                      ServiceCredential credential) {
+        String service = key(credential.getServiceName());
+        List<ServiceCredential> bucket = byService.get(service);
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            byService.put(service, bucket);
+            sortedByService.put(service, bucket);
+        }
+        bucket.add(credential);
+        byUsername.computeIfAbsent(key(credential.getUsername()), k -> new ArrayList<>(1)).add(credential);
+    }
+
+    // Returns whether the bucket became empty and was dropped
+    private static boolean removeFromIndex(Map<String, List<ServiceCredential>> index, String key, long id) {
+        List<ServiceCredential> bucket = index.get(key);
+        if (bucket == null) {
+            return false;
+        }
+        bucket.removeIf(credential -> credential.getId() == id);
+        if (bucket.isEmpty()) {
+            index.remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    private static List<ServiceCredential> copyOf(List<ServiceCredential> bucket) {
+        return bucket == null ? new ArrayList<>() : new ArrayList<>(bucket);
+    }
+
+    private static String key(String name) {
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+}
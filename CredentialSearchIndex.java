@@ -0,0 +1,703 @@
+import java.util.*;
+
+// Search over service names and usernames, updated in place as credentials come and go.
+//
+// A radix trie holds every word of both fields as well as each whole value, with ids stored
+// where a term ends and per-subtree term counts on every node. A type-ahead query finds the
+// node its text leads to and walks that subtree in name order, skipping branches the counts
+// show to be empty, until the page is full. Service name matches come first, then usernames,
+// then any word. Queries that do not fill the page fall back to words within one edit
+// (typos, swapped letters) found by walking the trie with an edit-distance row per
+// character, and then to values sharing enough trigrams, ranked by overlap.
+public class CredentialSearchIndex {
+    // Share of the query's trigrams a fuzzy match must have
+    private static final double MIN_TRIGRAM_OVERLAP = 0.5;
+    // Trigram postings tallied per query; rarer trigrams go first, the rest are probed
+    private static final int MAX_TRIGRAM_POSTINGS = 1 << 14;
+    // Shorter words must match exactly, as one edit would match almost anything
+    private static final int MIN_EDIT_WORD_LENGTH = 4;
+
+    private static final int WORD = 0;
+    private static final int SERVICE = 1;
+    private static final int USERNAME = 2;
+
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final Node root = new Node("");
+    private final Map<Long, IdList> trigrams = new HashMap<>();
+
+    public void add(ServiceCredential credential) {
+        Entry entry = new Entry(credential);
+        entries.put(entry.id, entry);
+        insert(entry.service, SERVICE, entry.id);
+        insert(entry.username, USERNAME, entry.id);
+        for (String word : entry.words()) {
+            insert(word, WORD, entry.id);
+        }
+        for (long trigram : entry.trigrams()) {
+            trigrams.computeIfAbsent(trigram, k -> new IdList()).add(entry.id);
+        }
+    }
+
+    public void remove(long id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return;
+        }
+        delete(entry.service, SERVICE, id);
+        delete(entry.username, USERNAME, id);
+        for (String word : entry.words()) {
+            delete(word, WORD, id);
+        }
+        for (long trigram : entry.trigrams()) {
+            IdList ids = trigrams.get(trigram);
+            if (ids != null && ids.remove(id) && ids.size == 0) {
+                trigrams.remove(trigram);
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Best matches first: exact service name, service name prefix, username prefix, word
+    // prefixes, words within one edit, then trigram matches
+    public List<ServiceCredential> search(String query, int limit) {
+        String normalized = normalize(query).trim();
+        List<ServiceCredential> results = new ArrayList<>();
+        if (normalized.isEmpty() || limit <= 0) {
+            return results;
+        }
+        Set<Long> found = new HashSet<>();
+
+        Node node = locate(normalized);
+        if (node != null) {
+            Node exact = find(normalized);
+            if (exact != null) {
+                take(exact.terminals[SERVICE], limit, results, found);
+            }
+            collect(node, SERVICE, limit, results, found, entry -> true);
+            collect(node, USERNAME, limit, results, found, entry -> true);
+        }
+
+        List<String> words = words(normalized);
+        if (results.size() < limit && !words.isEmpty()) {
+            takeWordMatches(words, false, limit, results, found);
+        }
+        if (results.size() < limit && !words.isEmpty()) {
+            takeWordMatches(words, true, limit, results, found);
+        }
+        if (results.size() < limit && normalized.length() >= 3) {
+            takeTrigramMatches(normalized, limit, results, found);
+        }
+        return results;
+    }
+
+    // Entries with a word matching every query word, driven from the word with the fewest candidates
+    private void takeWordMatches(List<String> words, boolean allowEdit, int limit,
+                                 List<ServiceCredential> results, Set<Long> found) {
+        List<Node> driverNodes = null;
+        String driverWord = null;
+        int driverCount = Integer.MAX_VALUE;
+        for (String word : words) {
+            List<Node> nodes = new ArrayList<>();
+            if (allowEdit) {
+                withinOneEdit(word, nodes);
+            } else {
+                Node node = locate(word);
+                if (node != null) {
+                    nodes.add(node);
+                }
+            }
+            int count = 0;
+            for (Node node : nodes) {
+                count += node.counts[WORD];
+            }
+            if (count == 0) {
+                return;
+            }
+            if (count < driverCount) {
+                driverNodes = nodes;
+                driverWord = word;
+                driverCount = count;
+            }
+        }
+        List<String> otherWords = new ArrayList<>(words);
+        otherWords.remove(driverWord);
+
+        for (Node node : driverNodes) {
+            collect(node, WORD, limit, results, found, entry -> {
+                for (String word : otherWords) {
+                    if (!entry.hasWordMatching(word, allowEdit)) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+    }
+
+    // Values sharing at least half the query's trigrams, ranked by Dice coefficient. The
+    // rarest trigram lists are tallied; anything that could still qualify is probed in the rest.
+    private void takeTrigramMatches(String query, int limit, List<ServiceCredential> results, Set<Long> found) {
+        long[] queryTrigrams = trigramsOf(query);
+        if (queryTrigrams.length == 0) {
+            return;
+        }
+        int required = Math.max(1, (int) Math.ceil(queryTrigrams.length * MIN_TRIGRAM_OVERLAP));
+
+        List<IdList> lists = new ArrayList<>();
+        for (long trigram : queryTrigrams) {
+            IdList ids = trigrams.get(trigram);
+            if (ids != null) {
+                lists.add(ids);
+            }
+        }
+        if (lists.size() < required) {
+            return;
+        }
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+
+        LongIntCounter shared = new LongIntCounter();
+        int tallied = 0;
+        int postings = 0;
+        // Pigeonhole: a qualifying value appears in at least one of the first (n - required + 1) lists
+        int mustTally = lists.size() - required + 1;
+        while (tallied < lists.size() && (tallied < mustTally
+                || postings + lists.get(tallied).size <= MAX_TRIGRAM_POSTINGS)) {
+            IdList ids = lists.get(tallied++);
+            postings += ids.size;
+            for (int i = 0; i < ids.size; i++) {
+                shared.increment(ids.ids[i]);
+            }
+        }
+        int untallied = lists.size() - tallied;
+
+        // Keep the best page in a min-heap on (score, then later ids first)
+        PriorityQueue<ScoredEntry> best = new PriorityQueue<>();
+        for (int slot = 0; slot < shared.keys.length; slot++) {
+            int count = shared.counts[slot];
+            long id = shared.keys[slot];
+            if (count == 0 || count + untallied < required || found.contains(id)) {
+                continue;
+            }
+            for (int i = tallied; i < lists.size(); i++) {
+                if (lists.get(i).contains(id)) {
+                    count++;
+                }
+            }
+            if (count >= required) {
+                Entry entry = entries.get(id);
+                best.add(new ScoredEntry(entry, 2.0 * count / (queryTrigrams.length + entry.trigramCount)));
+                if (best.size() > limit - results.size()) {
+                    best.poll();
+                }
+            }
+        }
+
+        List<ScoredEntry> ranked = new ArrayList<>(best);
+        Collections.sort(ranked, Collections.reverseOrder());
+        for (ScoredEntry scored : ranked) {
+            found.add(scored.entry.id);
+            results.add(scored.entry.credential);
+        }
+    }
+
+    private void take(IdList ids, int limit, List<ServiceCredential> results, Set<Long> found) {
+        if (ids == null) {
+            return;
+        }
+        for (int i = 0; i < ids.size && results.size() < limit; i++) {
+            if (found.add(ids.ids[i])) {
+                results.add(entries.get(ids.ids[i]).credential);
+            }
+        }
+    }
+
+    // Terms of one kind in a subtree, in name order, until the page is full
+    private void collect(Node node, int kind, int limit, List<ServiceCredential> results,
+                         Set<Long> found, EntryFilter filter) {
+        if (node.counts[kind] == 0 || results.size() >= limit) {
+            return;
+        }
+        IdList ids = node.terminals[kind];
+        if (ids != null) {
+            for (int i = 0; i < ids.size && results.size() < limit; i++) {
+                long id = ids.ids[i];
+                if (found.contains(id)) {
+                    continue;
+                }
+                Entry entry = entries.get(id);
+                if (filter.accept(entry)) {
+                    found.add(id);
+                    results.add(entry.credential);
+                }
+            }
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            collect(node.children[i], kind, limit, results, found, filter);
+        }
+    }
+
+    // The node whose path is the shortest one starting with the prefix, or null
+    private Node locate(String prefix) {
+        Node node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            Node child = node.child(prefix.charAt(i));
+            if (child == null) {
+                return null;
+            }
+            int common = commonPrefix(child.label, prefix, i);
+            if (i + common < prefix.length() && common < child.label.length()) {
+                return null;
+            }
+            node = child;
+            i += common;
+        }
+        return node;
+    }
+
+    // The node whose path is exactly the term, or null
+    private Node find(String term) {
+        Node node = root;
+        int i = 0;
+        while (i < term.length()) {
+            node = node.child(term.charAt(i));
+            if (node == null || !term.startsWith(node.label, i)) {
+                return null;
+            }
+            i += node.label.length();
+        }
+        return node;
+    }
+
+    private void insert(String term, int kind, long id) {
+        if (term.isEmpty()) {
+            return;
+        }
+        Node node = root;
+        node.counts[kind]++;
+        int i = 0;
+        while (i < term.length()) {
+            Node child = node.child(term.charAt(i));
+            if (child == null) {
+                child = node.addChild(new Node(term.substring(i)));
+                i = term.length();
+            } else {
+                int common = commonPrefix(child.label, term, i);
+                if (common < child.label.length()) {
+                    child = node.split(child, common);
+                }
+                i += common;
+            }
+            node = child;
+            node.counts[kind]++;
+        }
+        node.terminal(kind).add(id);
+    }
+
+    private void delete(String term, int kind, long id) {
+        if (term.isEmpty()) {
+            return;
+        }
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        int i = 0;
+        while (i < term.length()) {
+            node = node.child(term.charAt(i));
+            if (node == null || !term.startsWith(node.label, i)) {
+                return;
+            }
+            path.add(node);
+            i += node.label.length();
+        }
+        IdList ids = node.terminals[kind];
+        if (ids == null || !ids.remove(id)) {
+            return;
+        }
+        for (int depth = path.size() - 1; depth >= 0; depth--) {
+            Node current = path.get(depth);
+            current.counts[kind]--;
+            if (depth > 0 && current.isEmpty()) {
+                path.get(depth - 1).removeChild(current);
+            }
+        }
+    }
+
+    // Nodes whose path is within one insertion, deletion, substitution or adjacent swap of
+    // the word; the subtree below such a node matches too, so the walk stops there
+    private void withinOneEdit(String word, List<Node> matches) {
+        if (word.length() < MIN_EDIT_WORD_LENGTH) {
+            return;
+        }
+        int[] firstRow = new int[word.length() + 1];
+        for (int i = 0; i < firstRow.length; i++) {
+            firstRow[i] = i;
+        }
+        for (int i = 0; i < root.childCount; i++) {
+            walkWithinOneEdit(root.children[i], word, null, firstRow, (char) 0, matches);
+        }
+    }
+
+    private static void walkWithinOneEdit(Node node, String word, int[] rowBeforeLast, int[] lastRow,
+                                          char previous, List<Node> matches) {
+        for (int c = 0; c < node.label.length(); c++) {
+            char label = node.label.charAt(c);
+            int[] row = nextRow(word, rowBeforeLast, lastRow, previous, label);
+            if (row[word.length()] <= 1) {
+                matches.add(node);
+                return;
+            }
+            if (min(row) > 1) {
+                return;
+            }
+            rowBeforeLast = lastRow;
+            lastRow = row;
+            previous = label;
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            walkWithinOneEdit(node.children[i], word, rowBeforeLast, lastRow, previous, matches);
+        }
+    }
+
+    // One step of the restricted Damerau-Levenshtein table: the edit distances between every
+    // prefix of the word and the text read so far, now ending with label
+    static int[] nextRow(String word, int[] rowBeforeLast, int[] lastRow, char previous, char label) {
+        int[] row = new int[lastRow.length];
+        row[0] = lastRow[0] + 1;
+        for (int i = 1; i < row.length; i++) {
+            int cost = word.charAt(i - 1) == label ? 0 : 1;
+            row[i] = Math.min(Math.min(row[i - 1] + 1, lastRow[i] + 1), lastRow[i - 1] + cost);
+            if (rowBeforeLast != null && i > 1 && word.charAt(i - 1) == previous
+                    && word.charAt(i - 2) == label) {
+                row[i] = Math.min(row[i], rowBeforeLast[i - 2] + 1);
+            }
+        }
+        return row;
+    }
+
+    private static int min(int[] row) {
+        int min = Integer.MAX_VALUE;
+        for (int value : row) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    private static int commonPrefix(String label, String text, int offset) {
+        int length = Math.min(label.length(), text.length() - offset);
+        int i = 0;
+        while (i < length && label.charAt(i) == text.charAt(offset + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    static String normalize(String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+    // Runs of letters and digits
+    static List<String> words(String value) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= value.length(); i++) {
+            boolean wordChar = i < value.length() && Character.isLetterOrDigit(value.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(value.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    // Distinct trigrams, each packed as three 16-bit chars and scrambled by an odd multiplier
+    // (which keeps them distinct) so that Long.hashCode spreads them well
+    static long[] trigramsOf(String value) {
+        long[] packed = new long[Math.max(0, value.length() - 2)];
+        int count = 0;
+        for (int i = 0; i + 3 <= value.length(); i++) {
+            long trigram = (long) value.charAt(i) << 32 | (long) value.charAt(i + 1) << 16 | value.charAt(i + 2);
+            packed[count++] = trigram * 0x9E3779B97F4A7C15L;
+        }
+        return distinct(packed, count);
+    }
+
+    private static long[] distinct(long[] values, int count) {
+        Arrays.sort(values, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || values[unique - 1] != values[i]) {
+                values[unique++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, unique);
+    }
+
+    private interface EntryFilter {
+        boolean accept(Entry entry);
+    }
+
+    private static class ScoredEntry implements Comparable<ScoredEntry> {
+        final Entry entry;
+        final double score;
+
+        ScoredEntry(Entry entry, double score) {
+            this.entry = entry;
+            this.score = score;
+        }
+
+        // Ascending by score; among equal scores the later id ranks lower
+        @Override
+        public int compareTo(ScoredEntry other) {
+            int byScore = Double.compare(score, other.score);
+            return byScore != 0 ? byScore : Long.compare(other.entry.id, entry.id);
+        }
+    }
+
+    private static class Entry {
+        final long id;
+        final ServiceCredential credential;
+        final String service;
+        final String username;
+        final int trigramCount;
+
+        // Words and trigrams are derived again when needed rather than held for every entry
+        Entry(ServiceCredential credential) {
+            this.id = credential.getId();
+            this.credential = credential;
+            this.service = normalize(credential.getServiceName());
+            this.username = normalize(credential.getUsername());
+            this.trigramCount = trigrams().length;
+        }
+
+        Set<String> words() {
+            Set<String> words = new LinkedHashSet<>(CredentialSearchIndex.words(service));
+            words.addAll(CredentialSearchIndex.words(username));
+            return words;
+        }
+
+        long[] trigrams() {
+            long[] serviceTrigrams = trigramsOf(service);
+            long[] usernameTrigrams = trigramsOf(username);
+            long[] all = Arrays.copyOf(serviceTrigrams, serviceTrigrams.length + usernameTrigrams.length);
+            System.arraycopy(usernameTrigrams, 0, all, serviceTrigrams.length, usernameTrigrams.length);
+            return distinct(all, all.length);
+        }
+
+        boolean hasWordMatching(String query, boolean allowEdit) {
+            if (hasWordStartingWith(service, query) || hasWordStartingWith(username, query)) {
+                return true;
+            }
+            if (allowEdit) {
+                for (String word : words()) {
+                    if (prefixWithinOneEdit(query, word)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static boolean hasWordStartingWith(String value, String query) {
+            for (int at = value.indexOf(query); at >= 0; at = value.indexOf(query, at + 1)) {
+                if (at == 0 || !Character.isLetterOrDigit(value.charAt(at - 1))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean prefixWithinOneEdit(String query, String word) {
+            if (query.length() < MIN_EDIT_WORD_LENGTH) {
+                return false;
+            }
+            int[] rowBeforeLast = null;
+            int[] lastRow = new int[query.length() + 1];
+            for (int i = 0; i < lastRow.length; i++) {
+                lastRow[i] = i;
+            }
+            char previous = 0;
+            for (int c = 0; c < word.length(); c++) {
+                int[] row = nextRow(query, rowBeforeLast, lastRow, previous, word.charAt(c));
+                if (row[query.length()] <= 1) {
+                    return true;
+                }
+                if (min(row) > 1) {
+                    return false;
+                }
+                rowBeforeLast = lastRow;
+                lastRow = row;
+                previous = word.charAt(c);
+            }
+            return false;
+        }
+    }
+
+    private static class Node {
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        // Text on the edge from the parent
+        String label;
+        // Children sorted by the first character of their label
+        Node[] children = NO_CHILDREN;
+        int childCount;
+        // Ids of the words, service names and usernames ending here, created on first use
+        final IdList[] terminals = new IdList[3];
+        // Terms of each kind ending in this subtree
+        final int[] counts = new int[3];
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        IdList terminal(int kind) {
+            if (terminals[kind] == null) {
+                terminals[kind] = new IdList();
+            }
+            return terminals[kind];
+        }
+
+        boolean isEmpty() {
+            return counts[WORD] == 0 && counts[SERVICE] == 0 && counts[USERNAME] == 0;
+        }
+
+        Node child(char first) {
+            int index = indexOf(first);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node addChild(Node child) {
+            int index = -indexOf(child.label.charAt(0)) - 1;
+            if (childCount == children.length) {
+                children = Arrays.copyOf(children, Math.max(2, childCount * 2));
+            }
+            System.arraycopy(children, index, children, index + 1, childCount - index);
+            children[index] = child;
+            childCount++;
+            return child;
+        }
+
+        // Break a child's edge after its first `at` characters, returning the new middle node
+        Node split(Node child, int at) {
+            int index = indexOf(child.label.charAt(0));
+            Node middle = new Node(child.label.substring(0, at));
+            System.arraycopy(child.counts, 0, middle.counts, 0, 3);
+            child.label = child.label.substring(at);
+            middle.children = new Node[] {child, null};
+            middle.childCount = 1;
+            children[index] = middle;
+            return middle;
+        }
+
+        void removeChild(Node child) {
+            int index = indexOf(child.label.charAt(0));
+            if (index < 0 || children[index] != child) {
+                return;
+            }
+            System.arraycopy(children, index + 1, children, index, childCount - index - 1);
+            childCount--;
+            children[childCount] = null;
+        }
+
+        private int indexOf(char first) {
+            int low = 0;
+            int high = childCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                char label = children[middle].label.charAt(0);
+                if (label < first) {
+                    low = middle + 1;
+                } else if (label > first) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -low - 1;
+        }
+    }
+
+    // Sorted list of primitive ids
+    private static class IdList {
+        long[] ids = new long[1];
+        int size;
+
+        // Ids normally arrive in increasing order
+        void add(long id) {
+            int index = size > 0 && ids[size - 1] >= id ? Arrays.binarySearch(ids, 0, size, id) : -size - 1;
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        boolean remove(long id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+    }
+
+    // Open-addressing id -> count table, avoiding a boxed map in the trigram tally
+    private static class LongIntCounter {
+        long[] keys = new long[64];
+        int[] counts = new int[64];
+        int size;
+
+        void increment(long key) {
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            int slot = slot(key, keys.length);
+            while (counts[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            if (counts[slot] == 0) {
+                keys[slot] = key;
+                size++;
+            }
+            counts[slot]++;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new int[oldCounts.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldCounts[i] != 0) {
+                    int slot = slot(oldKeys[i], keys.length);
+                    while (counts[slot] != 0) {
+                        slot = (slot + 1) & (keys.length - 1);
+                    }
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        private static int slot(long key, int capacity) {
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32)) & (capacity - 1);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.*;
+import javax.swing.table.AbstractTableModel;
+
+// Table model reading straight from a credential list instead of copying it into rows.
+// JTable only asks for the rows on screen, and those are decoded a page at a time into a
+// small LRU cache, so scrolling a memory-mapped vault only ever decodes what is shown.
+// Callers report individual inserts and deletes so the table updates just those rows.
+//
+// The list may change on another thread before the change is reported. The row count the
+// table sees is therefore kept here and only moves on the event dispatch thread, together
+// with the page invalidation and the table event. Until then, stale or missing rows read
+// as blanks instead of failing.
+public class CredentialTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMNS = {"Service", "Username"};
+    private static final int PAGE_SIZE = 256;
+    private static final int CACHED_PAGES = 32;
+
+    private List<ServiceCredential> rows = Collections.emptyList();
+    // Rows published to the table; only changed on the event dispatch thread
+    private int rowCount;
+    private final Map<Integer, String[][]> pages = new LinkedHashMap<Integer, String[][]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[][]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    // Show a different list, e.g. search results; the model does not copy it
+    public void setRows(List<ServiceCredential> rows) {
+        this.rows = rows;
+        rowCount = rows.size();
+        pages.clear();
+        fireTableDataChanged();
+    }
+
+    public List<ServiceCredential> getRows() {
+        return rows;
+    }
+
+    public ServiceCredential getCredential(int row) {
+        return rows.get(row);
+    }
+
+    // A row was added to the underlying list at this position
+    public void rowInserted(int row) {
+        rowCount++;
+        invalidateFrom(row);
+        fireTableRowsInserted(row, row);
+    }
+
+    // The row at this position was removed from the underlying list
+    public void rowDeleted(int row) {
+        rowCount--;
+        invalidateFrom(row);
+        fireTableRowsDeleted(row, row);
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return String.class;
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int page = row / PAGE_SIZE;
+        String[][] values = pages.get(page);
+        if (values == null) {
+            values = loadPage(page);
+            pages.put(page, values);
+        }
+        int offset = row % PAGE_SIZE;
+        // The list shrank before the change was reported; the pending event reloads the page
+        return offset < values.length ? values[offset][column] : null;
+    }
+
+    private String[][] loadPage(int page) {
+        int start = page * PAGE_SIZE;
+        int end = Math.max(start, Math.min(start + PAGE_SIZE, rows.size()));
+        String[][] values = new String[end - start][];
+        for (int row = start; row < end; row++) {
+            ServiceCredential credential;
+            try {
+                credential = rows.get(row);
+            } catch (IndexOutOfBoundsException e) {
+                // Removed by another thread since size() was read
+                return Arrays.copyOf(values, row - start);
+            }
+            values[row - start] = new String[] {credential.getServiceName(), credential.getUsername()};
+        }
+        return values;
+    }
+
+    // Rows at and after a change shift, so pages holding them are stale
+    private void invalidateFrom(int row) {
+        pages.keySet().removeIf(page -> (page + 1) * PAGE_SIZE > row);
+    }
+}
@@ -0,0 +1,429 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import javax.crypto.SecretKey;
+
+// Streaming import and export of plaintext credentials as CSV or JSON. Input is parsed one
+// record at a time and handed over in fixed-size batches, which are encrypted (or, on
+// export, decrypted) in parallel on a ForkJoinPool, so memory stays bounded by the batch
+// size however large the file is.
+//
+// CSV needs a header row. Columns are matched by name, ignoring case, so exports of other
+// password managers can be read as they are: the service comes from "service", "name",
+// "title" or a URL column, the username from "username", "login_username", "login" or
+// "user", and the password from "password" or "login_password". JSON is an array of flat
+// objects with the same member names. Exports use service, username and password.
+public class CredentialTransfer {
+    public static final int BATCH_SIZE = 4096;
+    private static final int LEAF_SIZE = 256;
+
+    private static final List<String> SERVICE_COLUMNS =
+            Arrays.asList("service", "name", "title", "url", "login_uri", "website");
+    private static final List<String> USERNAME_COLUMNS =
+            Arrays.asList("username", "login_username", "login", "user", "email");
+    private static final List<String> PASSWORD_COLUMNS =
+            Arrays.asList("password", "login_password");
+
+    public enum Format {
+        CSV, JSON;
+
+        // JSON for .json files, CSV for anything else
+        public static Format forFileName(String fileName) {
+            return fileName.toLowerCase(Locale.ROOT).endsWith(".json") ? JSON : CSV;
+        }
+    }
+
+    // A plaintext credential as read from or written to a file
+    public static class Entry {
+        private final String serviceName;
+        private final String username;
+        private final String password;
+
+        public Entry(String serviceName, String username, String password) {
+            this.serviceName = serviceName;
+            this.username = username;
+            this.password = password;
+        }
+
+        public String getServiceName() { return serviceName; }
+        public String getUsername() { return username; }
+        public String getPassword() { return password; }
+
+        boolean isComplete() {
+            return serviceName != null && !serviceName.trim().isEmpty()
+                    && username != null && !username.trim().isEmpty()
+                    && password != null && !password.isEmpty();
+        }
+    }
+
+    public interface EntryReader extends Closeable {
+        // The next entry, or null at the end of the input. Entries with missing fields are
+        // returned as they are; the importer counts and skips them.
+        Entry next() throws IOException;
+
+        // Line of the input reached so far, for error reports
+        int getLine();
+    }
+
+    public interface EntryWriter extends Closeable {
+        void write(Entry entry) throws IOException;
+    }
+
+    // Reject an entry whose service name or username is too long for the vault to record;
+    // number counts the entries of the file from 1
+    static void checkFieldLengths(Entry entry, int number) throws IOException {
+        if (entry.getServiceName() != null
+                && CredentialJournal.encodedLength(entry.getServiceName()) > CredentialJournal.MAX_FIELD_BYTES) {
+            throw new IOException("Entry " + number + " has a service name longer than "
+                    + CredentialJournal.MAX_FIELD_BYTES + " bytes");
+        }
+        if (entry.getUsername() != null
+                && CredentialJournal.encodedLength(entry.getUsername()) > CredentialJournal.MAX_FIELD_BYTES) {
+            throw new IOException("Entry " + number + " has a username longer than "
+                    + CredentialJournal.MAX_FIELD_BYTES + " bytes");
+        }
+    }
+
+    public static EntryReader reader(Reader in, Format format) throws IOException {
+        return format == Format.JSON ? new JsonEntryReader(in) : new CsvEntryReader(in);
+    }
+
+    public static EntryWriter writer(Writer out, Format format) throws IOException {
+        return format == Format.JSON ? new JsonEntryWriter(out) : new CsvEntryWriter(out);
+    }
+
+    // Encrypt a batch in parallel, binding each password to its service and username.
+    // Results keep the input order and carry no id yet.
+    public static ServiceCredential[] encrypt(List<Entry> entries, SecretKey key) {
+        ServiceCredential[] result = new ServiceCredential[entries.size()];
+        ForkJoinPool.commonPool().invoke(new Batch(index -> {
+            Entry entry = entries.get(index);
+            CryptoUtil.EncryptedData encrypted = CryptoUtil.encrypt(entry.getPassword(), key,
+                    CryptoUtil.credentialAad(entry.getServiceName(), entry.getUsername()));
+            result[index] = new ServiceCredential(entry.getServiceName(), entry.getUsername(), encrypted);
+        }, 0, result.length));
+        return result;
+    }
+
+    // Decrypt a batch in parallel, keeping the input order
+    public static Entry[] decrypt(List<ServiceCredential> credentials, SecretKey key) {
+        Entry[] result = new Entry[credentials.size()];
+        ForkJoinPool.commonPool().invoke(new Batch(index -> {
+            ServiceCredential credential = credentials.get(index);
+            String password = CryptoUtil.decrypt(credential.getEncryptedPassword(), key,
+                    credential.getAssociatedData());
+            result[index] = new Entry(credential.getServiceName(), credential.getUsername(), password);
+        }, 0, result.length));
+        return result;
+    }
+
+    // Splits an index range until it is small enough, then runs the task on each index
+    private static class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer task;
+        private final int start;
+        private final int end;
+
+        Batch(IntConsumer task, int start, int end) {
+            this.task = task;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= LEAF_SIZE) {
+                for (int i = start; i < end; i++) {
+                    task.accept(i);
+                }
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new Batch(task, start, middle), new Batch(task, middle, end));
+        }
+    }
+
+    // Outcome of an import or export, with throughput
+    public static class Report {
+        private final PasswordManager.CredentialResult result;
+        private final int entries;
+        private final int skipped;
+        private final int batches;
+        private final long elapsedNanos;
+        private final String error;
+
+        public Report(PasswordManager.CredentialResult result, int entries, int skipped, int batches,
+                      long elapsedNanos, String error) {
+            this.result = result;
+            this.entries = entries;
+            this.skipped = skipped;
+            this.batches = batches;
+            this.elapsedNanos = elapsedNanos;
+            this.error = error;
+        }
+
+        public PasswordManager.CredentialResult getResult() { return result; }
+        // Complete only when there is no error; on an error the batches before it still count
+        public boolean isSuccess() { return result == PasswordManager.CredentialResult.SUCCESS && error == null; }
+        public int getEntries() { return entries; }
+        // Rows with a missing service, username or password
+        public int getSkipped() { return skipped; }
+        public int getBatches() { return batches; }
+        public long getElapsedMillis() { return elapsedNanos / 1_000_000; }
+        public double getEntriesPerSecond() {
+            return elapsedNanos == 0 ? 0 : entries * 1_000_000_000.0 / elapsedNanos;
+        }
+        // Why reading or writing stopped early, or null
+        public String getError() { return error; }
+    }
+
+    // RFC 4180 CSV: quoted fields may hold commas, doubled quotes and line breaks
+    private static class CsvEntryReader implements EntryReader {
+        private final Reader in;
+        private final int serviceColumn;
+        private final int usernameColumn;
+        private final int passwordColumn;
+        private int line = 1;
+        // Read in chunks; Reader.read() per character is synchronized and several times slower
+        private final char[] buffer = new char[8192];
+        private int position;
+        private int limit;
+
+        CsvEntryReader(Reader in) throws IOException {
+            this.in = in;
+            List<String> header = readRow();
+            if (header == null) {
+                throw new IOException("Empty CSV file");
+            }
+            List<String> columns = new ArrayList<>();
+            for (String column : header) {
+                // Drop a byte order mark left by spreadsheet programs
+                columns.add(column.replace("\uFEFF", "").trim().toLowerCase(Locale.ROOT));
+            }
+            serviceColumn = findColumn(columns, SERVICE_COLUMNS);
+            usernameColumn = findColumn(columns, USERNAME_COLUMNS);
+            passwordColumn = findColumn(columns, PASSWORD_COLUMNS);
+            if (serviceColumn < 0 || usernameColumn < 0 || passwordColumn < 0) {
+                throw new IOException("CSV header needs service, username and password columns");
+            }
+        }
+
+        private static int findColumn(List<String> columns, List<String> names) {
+            for (String name : names) {
+                int index = columns.indexOf(name);
+                if (index >= 0) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            List<String> row;
+            do {
+                row = readRow();
+                if (row == null) {
+                    return null;
+                }
+            } while (row.size() == 1 && row.get(0).isEmpty());
+            return new Entry(field(row, serviceColumn), field(row, usernameColumn), field(row, passwordColumn));
+        }
+
+        private static String field(List<String> row, int column) {
+            return column < row.size() ? row.get(column) : null;
+        }
+
+        private List<String> readRow() throws IOException {
+            if (peek() == -1) {
+                return null;
+            }
+            List<String> row = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                int c = read();
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("Unterminated quoted field on line " + line);
+                    } else if (c == '"' && peek() == '"') {
+                        read();
+                        field.append('"');
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    row.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\r' || c == '\n' || c == -1) {
+                    if (c == '\r' && peek() == '\n') {
+                        read();
+                    }
+                    row.add(field.toString());
+                    return row;
+                } else {
+                    field.append((char) c);
+                }
+            }
+        }
+
+        private int peek() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position];
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            if (c != -1) {
+                position++;
+            }
+            if (c == '\n') {
+                line++;
+            }
+            return c;
+        }
+
+        @Override
+        public int getLine() {
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class CsvEntryWriter implements EntryWriter {
+        private final Writer out;
+        private final StringBuilder row = new StringBuilder(128);
+
+        CsvEntryWriter(Writer out) throws IOException {
+            this.out = out;
+            out.write("service,username,password\r\n");
+        }
+
+        @Override
+        public void write(Entry entry) throws IOException {
+            row.setLength(0);
+            appendField(entry.getServiceName());
+            row.append(',');
+            appendField(entry.getUsername());
+            row.append(',');
+            appendField(entry.getPassword());
+            row.append("\r\n");
+            out.append(row);
+        }
+
+        private void appendField(String value) {
+            boolean needsQuotes = value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                    || value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0
+                    || (!value.isEmpty() && (value.charAt(0) == ' ' || value.charAt(value.length() - 1) == ' '));
+            if (!needsQuotes) {
+                row.append(value);
+                return;
+            }
+            row.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    row.append('"');
+                }
+                row.append(c);
+            }
+            row.append('"');
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class JsonEntryReader implements EntryReader {
+        private final Json.ArrayReader in;
+
+        JsonEntryReader(Reader in) {
+            this.in = new Json.ArrayReader(in);
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            Map<String, String> object = in.next();
+            if (object == null) {
+                return null;
+            }
+            Map<String, String> members = new HashMap<>();
+            for (Map.Entry<String, String> member : object.entrySet()) {
+                members.put(member.getKey().toLowerCase(Locale.ROOT), member.getValue());
+            }
+            return new Entry(member(members, SERVICE_COLUMNS), member(members, USERNAME_COLUMNS),
+                    member(members, PASSWORD_COLUMNS));
+        }
+
+        private static String member(Map<String, String> members, List<String> names) {
+            for (String name : names) {
+                String value = members.get(name);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public int getLine() {
+            return in.getLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class JsonEntryWriter implements EntryWriter {
+        private final Writer out;
+        private final StringBuilder object = new StringBuilder(128);
+        private boolean first = true;
+
+        JsonEntryWriter(Writer out) throws IOException {
+            this.out = out;
+            out.write("[");
+        }
+
+        @Override
+        public void write(Entry entry) throws IOException {
+            object.setLength(0);
+            object.append(first ? "\n  {\"service\": " : ",\n  {\"service\": ");
+            Json.appendQuoted(object, entry.getServiceName());
+            object.append(", \"username\": ");
+            Json.appendQuoted(object, entry.getUsername());
+            object.append(", \"password\": ");
+            Json.appendQuoted(object, entry.getPassword());
+            object.append('}');
+            out.append(object);
+            first = false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.write(first ? "]\n" : "\n]\n");
+            out.close();
+        }
+    }
+}
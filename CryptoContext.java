@@ -0,0 +1,57 @@
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+// Shared crypto primitives. Cipher and Mac objects are not thread-safe, so each thread
+// keeps its own and re-initializes it per operation instead of looking one up from the
+// provider every time. SecureRandom is thread-safe and shared by everyone.
+public final class CryptoContext {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CBC_CIPHERS = ThreadLocal.withInitial(
+            () -> newCipher(CryptoUtil.TRANSFORMATION));
+    private static final ThreadLocal<Cipher> GCM_CIPHERS = ThreadLocal.withInitial(
+            () -> newCipher(CryptoUtil.GCM_TRANSFORMATION));
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(CryptoUtil.MAC_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("MAC unavailable: " + CryptoUtil.MAC_ALGORITHM, e);
+        }
+    });
+
+    static {
+        // Force self-seeding now rather than on the first salt or IV request
+        RANDOM.nextBytes(new byte[1]);
+    }
+
+    private CryptoContext() {
+    }
+
+    public static void nextBytes(byte[] bytes) {
+        RANDOM.nextBytes(bytes);
+    }
+
+    // This thread's AES/CBC cipher; callers must init it before every use
+    public static Cipher cbcCipher() {
+        return CBC_CIPHERS.get();
+    }
+
+    // This thread's AES/GCM cipher; callers must init it with a fresh nonce before every use
+    public static Cipher gcmCipher() {
+        return GCM_CIPHERS.get();
+    }
+
+    // This thread's HMAC-SHA256; callers must init it before every use
+    public static Mac mac() {
+        return MACS.get();
+    }
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cipher unavailable: " + transformation, e);
+        }
+    }
+}
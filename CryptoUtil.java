@@ -1,67 +1,154 @@
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
-import java.security.spec.KeySpec;
-import java.util.Base64;
+import java.util.Arrays;
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import javax.security.auth.DestroyFailedException;
 
 public class CryptoUtil {
-    private static final String HASH_ALGORITHM = "PBKDF2WithHmacSHA256";
     private static final String ENCRYPTION_ALGORITHM = "AES";
-    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
     private static final int KEY_LENGTH = 256;
-    private static final int IV_LENGTH = 16;
+    private static final int GCM_NONCE_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
     private static final int SALT_LENGTH = 16;
-    private static final int HASH_ITERATIONS = 100000;
+    static final int HASH_ITERATIONS = 100000;
+    static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] VERIFIER_INFO = "anticloud auth v2".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ENCRYPTION_INFO = "anticloud enc v2".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] KEY_CHECK_INFO = "anticloud key check".getBytes(StandardCharsets.UTF_8);
+    private static final int KEY_CHECK_LENGTH = 16;
 
-    // Hash password for user authentication
-    public static String hashPassword(String password, byte[] salt) {
+    // Run the password KDF once; both the verifier and the encryption key are expanded from this
+    public static byte[] deriveRootKey(char[] password, byte[] salt, KdfParameters parameters) {
+        long started = Metrics.start();
+        byte[] rootKey = KeyDerivationFunction.forParameters(parameters).derive(password, salt, KEY_LENGTH / 8);
+        Metrics.KDF.stop(started);
+        return rootKey;
+    }
+
+    // Single-pass derivation: one KDF run, split HKDF-style into a verifier and an encryption key.
+    // The keys live off-heap; destroy the result once they have been used or copied.
+    public static KeyMaterial deriveKeyMaterial(char[] password, byte[] salt, KdfParameters parameters) {
+        SecretBuffer rootKey = SecretBuffer.wrap(deriveRootKey(password, salt, parameters));
+        SecretKey prk = rootKey.asKey(MAC_ALGORITHM);
+        byte[] verifier = hkdfExpand(prk, VERIFIER_INFO, KEY_LENGTH / 8);
+        SecretBuffer encryptionKey = SecretBuffer.wrap(hkdfExpand(prk, ENCRYPTION_INFO, KEY_LENGTH / 8));
+        return new KeyMaterial(rootKey, verifier, encryptionKey.asKey(ENCRYPTION_ALGORITHM));
+    }
+
+    // HKDF-Expand (RFC 5869) with HMAC-SHA256, treating the PBKDF2 output as the pseudorandom key
+    static byte[] hkdfExpand(SecretKey prk, byte[] info, int length) {
         try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance(HASH_ALGORITHM);
-            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_ITERATIONS, KEY_LENGTH);
-            SecretKey key = factory.generateSecret(spec);
-            return Base64.getEncoder().encodeToString(key.getEncoded());
+            Mac mac = CryptoContext.mac();
+            mac.init(prk);
+            byte[] output = new byte[length];
+            byte[] block = new byte[0];
+            int offset = 0;
+            for (int counter = 1; offset < length; counter++) {
+                mac.update(block);
+                mac.update(info);
+                mac.update((byte) counter);
+                Arrays.fill(block, (byte) 0);
+                block = mac.doFinal();
+                int chunk = Math.min(block.length, length - offset);
+                System.arraycopy(block, 0, output, offset, chunk);
+                offset += chunk;
+            }
+            Arrays.fill(block, (byte) 0);
+            return output;
         } catch (Exception e) {
-            throw new RuntimeException("Error hashing password", e);
+            throw new RuntimeException("Error expanding key", e);
+        }
+    }
+
+    // Short fingerprint of an encryption key, stored with the vault to tell which key it is under
+    public static byte[] keyCheck(SecretKey key) {
+        return hkdfExpand(key, KEY_CHECK_INFO, KEY_CHECK_LENGTH);
+    }
+
+    // An off-heap copy of a key that its owner destroys independently of the original
+    public static SecretKey copyKey(SecretKey key) {
+        return SecretBuffer.wrap(key.getEncoded()).asKey(key.getAlgorithm());
+    }
+
+    // Wipe a key where the implementation supports it; SecretKeySpec does not, and is left alone
+    public static void destroyKey(SecretKey key) {
+        if (key == null || key.isDestroyed()) {
+            return;
+        }
+        try {
+            key.destroy();
+        } catch (DestroyFailedException e) {
+            // Nothing more can be done for keys that cannot be wiped
         }
     }
 
     // Generate random salt
     public static byte[] generateSalt() {
-        SecureRandom random = new SecureRandom();
         byte[] salt = new byte[SALT_LENGTH];
-        random.nextBytes(salt);
+        CryptoContext.nextBytes(salt);
         return salt;
     }
 
-    // Derive encryption key from master password and salt
-    public static SecretKey deriveKey(String masterPassword, byte[] salt) {
-        try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance(HASH_ALGORITHM);
-            KeySpec spec = new PBEKeySpec(masterPassword.toCharArray(), salt, HASH_ITERATIONS, KEY_LENGTH);
-            SecretKey tmp = factory.generateSecret(spec);
-            return new SecretKeySpec(tmp.getEncoded(), ENCRYPTION_ALGORITHM);
-        } catch (Exception e) {
-            throw new RuntimeException("Error deriving key", e);
-        }
+    // Generate random 96-bit GCM nonce
+    public static byte[] generateNonce() {
+        byte[] nonce = new byte[GCM_NONCE_LENGTH];
+        CryptoContext.nextBytes(nonce);
+        return nonce;
     }
 
-    // Generate random IV
-    public static byte[] generateIV() {
-        SecureRandom random = new SecureRandom();
-        byte[] iv = new byte[IV_LENGTH];
-        random.nextBytes(iv);
-        return iv;
+    // Additional authenticated data for a credential: its ciphertext only verifies under
+    // the service name and username it was stored with
+    public static byte[] credentialAad(String serviceName, String username) {
+        byte[] service = serviceName.getBytes(StandardCharsets.UTF_8);
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + service.length + user.length)
+                .putInt(service.length).put(service)
+                .putInt(user.length).put(user)
+                .array();
     }
 
     // Encrypt data
     public static EncryptedData encrypt(String plaintext, SecretKey key) {
+        return encrypt(plaintext.getBytes(StandardCharsets.UTF_8), key, null);
+    }
+
+    // Encrypt data bound to additional authenticated data
+    public static EncryptedData encrypt(String plaintext, SecretKey key, byte[] aad) {
+        return encrypt(plaintext.getBytes(StandardCharsets.UTF_8), key, aad);
+    }
+
+    // Encrypt a password held as characters, wiping the encoded bytes afterwards
+    public static EncryptedData encrypt(char[] plaintext, SecretKey key, byte[] aad) {
+        byte[] bytes = SecretBuffer.encodeToArray(plaintext);
         try {
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            byte[] iv = generateIV();
-            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
-            byte[] encrypted = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
-            return new EncryptedData(encrypted, iv);
+            return encrypt(bytes, key, aad);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    // Encrypt raw bytes with AES-GCM bound to additional authenticated data; aad may be null
+    public static EncryptedData encrypt(byte[] plaintext, SecretKey key, byte[] aad) {
+        return encrypt(plaintext, 0, plaintext.length, key, aad);
+    }
+
+    // Encrypt part of an array, e.g. a reused plaintext buffer in a bulk pass
+    public static EncryptedData encrypt(byte[] plaintext, int offset, int length, SecretKey key, byte[] aad) {
+        try {
+            long started = Metrics.start();
+            Cipher cipher = CryptoContext.gcmCipher();
+            byte[] nonce = generateNonce();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, nonce));
+            if (aad != null) {
+                cipher.updateAAD(aad);
+            }
+            byte[] encrypted = cipher.doFinal(plaintext, offset, length);
+            Metrics.ENCRYPT.stop(started);
+            return new EncryptedData(CipherScheme.AES_GCM, encrypted, nonce);
         } catch (Exception e) {
             throw new RuntimeException("Error encrypting data", e);
         }
@@ -69,27 +156,131 @@ public class CryptoUtil {
 
     // Decrypt data
     public static String decrypt(EncryptedData encryptedData, SecretKey key) {
+        return decrypt(encryptedData, key, null);
+    }
+
+    // Decrypt data that was bound to additional authenticated data (ignored for CBC records)
+    public static String decrypt(EncryptedData encryptedData, SecretKey key, byte[] aad) {
+        return new String(decryptBytes(encryptedData, key, aad), StandardCharsets.UTF_8);
+    }
+
+    // Decrypt to raw bytes, checking additional authenticated data for GCM records
+    public static byte[] decryptBytes(EncryptedData encryptedData, SecretKey key, byte[] aad) {
         try {
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(encryptedData.getIv()));
-            byte[] decrypted = cipher.doFinal(encryptedData.getData());
-            return new String(decrypted, StandardCharsets.UTF_8);
+            long started = Metrics.start();
+            byte[] plaintext = initDecrypt(encryptedData, key, aad).doFinal(encryptedData.getData());
+            Metrics.DECRYPT.stop(started);
+            return plaintext;
         } catch (Exception e) {
             throw new RuntimeException("Error decrypting data", e);
         }
     }
 
+    // Decrypt into an off-heap buffer the caller closes, wiping the heap plaintext
+    public static SecretBuffer decryptSecret(EncryptedData encryptedData, SecretKey key, byte[] aad) {
+        return SecretBuffer.wrap(decryptBytes(encryptedData, key, aad));
+    }
+
+    // Decrypt into a caller-supplied array, returning the number of bytes written
+    public static int decrypt(EncryptedData encryptedData, SecretKey key, byte[] aad, byte[] output) {
+        try {
+            long started = Metrics.start();
+            int length = initDecrypt(encryptedData, key, aad).doFinal(encryptedData.getData(), 0,
+                    encryptedData.getData().length, output, 0);
+            Metrics.DECRYPT.stop(started);
+            return length;
+        } catch (Exception e) {
+            throw new RuntimeException("Error decrypting data", e);
+        }
+    }
+
+    private static Cipher initDecrypt(EncryptedData encryptedData, SecretKey key, byte[] aad)
+            throws GeneralSecurityException {
+        if (encryptedData.getScheme() == CipherScheme.AES_CBC) {
+            Cipher cipher = CryptoContext.cbcCipher();
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(encryptedData.getIv()));
+            return cipher;
+        }
+        Cipher cipher = CryptoContext.gcmCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, encryptedData.getIv()));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher;
+    }
+
+    // How a ciphertext was produced. The id is what gets stored on disk.
+    public enum CipherScheme {
+        // Unauthenticated AES/CBC/PKCS5Padding with a 16-byte IV; read-only, for older records
+        AES_CBC(0),
+        // AES/GCM/NoPadding with a 12-byte nonce, 128-bit tag and AAD
+        AES_GCM(1);
+
+        private final int id;
+
+        CipherScheme(int id) {
+            this.id = id;
+        }
+
+        public int getId() { return id; }
+
+        public static CipherScheme fromId(int id) {
+            for (CipherScheme scheme : values()) {
+                if (scheme.id == id) {
+                    return scheme;
+                }
+            }
+            throw new IllegalArgumentException("Unknown cipher scheme " + id);
+        }
+    }
+
+    // Keys produced by a single KDF run. The root and encryption keys are off-heap and
+    // shared with the keys handed out here, so they are only valid until destroy().
+    public static class KeyMaterial {
+        private final SecretBuffer rootKey;
+        private final byte[] verifier;
+        private final SecretKey encryptionKey;
+
+        public KeyMaterial(SecretBuffer rootKey, byte[] verifier, SecretKey encryptionKey) {
+            this.rootKey = rootKey;
+            this.verifier = verifier;
+            this.encryptionKey = encryptionKey;
+        }
+
+        // Version 1 accounts stored the root key as their hash and encrypted with it directly
+        public boolean rootKeyMatches(byte[] expected) { return rootKey.matches(expected); }
+        public SecretKey getLegacyKey() { return rootKey.asKey(ENCRYPTION_ALGORITHM); }
+        public byte[] getVerifier() { return verifier; }
+        public SecretKey getEncryptionKey() { return encryptionKey; }
+
+        // Wipe every key; copies taken with copyKey stay usable
+        public void destroy() {
+            rootKey.close();
+            destroyKey(encryptionKey);
+            Arrays.fill(verifier, (byte) 0);
+        }
+    }
+
     // Container for encrypted data
     public static class EncryptedData {
+        private final CipherScheme scheme;
         private final byte[] data;
         private final byte[] iv;
 
+        // Records written before the scheme was tracked are CBC
         public EncryptedData(byte[] data, byte[] iv) {
+            this(CipherScheme.AES_CBC, data, iv);
+        }
+
+        public EncryptedData(CipherScheme scheme, byte[] data, byte[] iv) {
+            this.scheme = scheme;
             this.data = data;
             this.iv = iv;
         }
 
+        public CipherScheme getScheme() { return scheme; }
         public byte[] getData() { return data; }
+        // The CBC IV or the GCM nonce
         public byte[] getIv() { return iv; }
     }
 }
\ No newline at end of file
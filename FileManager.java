@@ -1,11 +1,38 @@
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 public class FileManager {
-    private static final String DATA_DIR = "password_manager_data";
+    // Relative to the working directory unless set, e.g. by benchmarks that must not touch real vaults
+    private static final String DATA_DIR = System.getProperty("anticloud.dataDir", "password_manager_data");
+    // Single file holding every account, written by older versions; split up on first start
     private static final String USERS_FILE = "users.dat";
+    // One record file per account under a two-hex-digit shard of its name hash, so startup and
+    // registration cost do not grow with the number of accounts
+    private static final String USERS_DIR = "users";
+    private static final String USER_RECORD_SUFFIX = ".usr";
+    // Per-account vault files are named after the same name hash as the user record
     private static final String CREDENTIALS_DIR = "credentials";
+    private static final String CREDENTIALS_SUFFIX = "_credentials.dat";
+    private static final String STAGED_SUFFIX = "_credentials.staged";
+    private static final String ACCESS_STATS_SUFFIX = "_access.dat";
+    private static final String LOCK_SUFFIX = "_credentials.lock";
+    private static final String JOURNAL_SUFFIX = "_credentials.log";
+    private static final String COMPACTING_JOURNAL_SUFFIX = "_credentials.log.old";
+    // Files older versions named after the plain account name; renamed when the vault is locked.
+    // The lock file only exists since vault locking was added, so it cannot mark an old vault.
+    private static final String[] MIGRATED_SUFFIXES = {CREDENTIALS_SUFFIX, STAGED_SUFFIX, ACCESS_STATS_SUFFIX,
+            JOURNAL_SUFFIX, COMPACTING_JOURNAL_SUFFIX, LOCK_SUFFIX};
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Vaults at least this large are memory-mapped instead of decoded at login
+    private static final long MAPPED_LOAD_THRESHOLD = 1024 * 1024;
 
     static {
         createDataDirectories();
@@ -14,67 +41,459 @@ public class FileManager {
     private static void createDataDirectories() {
         try {
             Files.createDirectories(Paths.get(DATA_DIR));
+            Files.createDirectories(Paths.get(DATA_DIR, USERS_DIR));
             Files.createDirectories(Paths.get(DATA_DIR, CREDENTIALS_DIR));
         } catch (IOException e) {
             throw new RuntimeException("Failed to create data directories", e);
         }
     }
 
-    // Save users to file
-    public static void saveUsers(Map<String, User> users) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(Paths.get(DATA_DIR, USERS_FILE).toString()))) {
-            oos.writeObject(users);
+    // Load one account by name, or null if there is no such account
+    public static User loadUser(String username) {
+        Path userPath = getUserPath(username);
+        if (!Files.exists(userPath)) {
+            return null;
+        }
+        long started = Metrics.start();
+        try (InputStream in = openInput(userPath)) {
+            User user = VaultCodec.readUser(new DataInputStream(in));
+            Metrics.USER_LOAD.stop(started);
+            // Guards against the practically impossible case of two names sharing a hash
+            return user.getUsername().equals(username) ? user : null;
+        } catch (IOException e) {
+            System.err.println("Error loading user: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static boolean userExists(String username) {
+        return Files.exists(getUserPath(username));
+    }
+
+    // Write a new account's record; returns false if the account already exists
+    public static boolean createUser(User user) {
+        Path userPath = getUserPath(user.getUsername());
+        try {
+            Files.createDirectories(userPath.getParent());
+            Path temp = writeTempFile(userPath, out -> VaultCodec.writeUser(out, user));
+            try {
+                Files.move(temp, userPath);
+                syncDirectory(userPath.getParent());
+                return true;
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(temp);
+                return false;
+            }
         } catch (IOException e) {
-            throw new RuntimeException("Error saving users", e);
+            throw new RuntimeException("Error saving user", e);
         }
     }
 
-    // Load users from file
+    // Replace an existing account's record, e.g. after a KDF upgrade or password change
+    public static void saveUser(User user) {
+        Path userPath = getUserPath(user.getUsername());
+        try {
+            Files.createDirectories(userPath.getParent());
+            replaceFile(userPath, out -> VaultCodec.writeUser(out, user));
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving user", e);
+        }
+    }
+
+    // Split a users.dat left by an older version into per-account records. Runs once: the
+    // file is removed when every account has been written out.
     @SuppressWarnings("unchecked")
-    public static Map<String, User> loadUsers() {
+    public static synchronized void migrateUsersFile() {
         Path usersPath = Paths.get(DATA_DIR, USERS_FILE);
         if (!Files.exists(usersPath)) {
-            return new HashMap<>();
+            return;
         }
 
-        try (ObjectInputStream ois = new ObjectInputStream(
-                new FileInputStream(usersPath.toString()))) {
-            return (Map<String, User>) ois.readObject();
+        Map<String, User> users;
+        try (InputStream in = openInput(usersPath)) {
+            if (VaultCodec.isLegacyFormat(in)) {
+                users = (Map<String, User>) new ObjectInputStream(in).readObject();
+            } else {
+                users = VaultCodec.readUsers(new DataInputStream(in));
+            }
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error loading users: " + e.getMessage());
-            return new HashMap<>();
+            return;
+        }
+
+        for (User user : users.values()) {
+            // A record already present was written by a previous, interrupted migration
+            // or changed since, so it is the newer one
+            if (!Files.exists(getUserPath(user.getUsername()))) {
+                saveUser(user);
+            }
+        }
+        try {
+            Files.delete(usersPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Error removing migrated users file", e);
         }
     }
 
-    // Save credentials for a user
-    public static void saveUserCredentials(String username, List<ServiceCredential> credentials) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(getUserCredentialsPath(username)))) {
-            oos.writeObject(credentials);
+    // Save a credentials snapshot for a user. The snapshot records the last journal
+    // sequence it contains so replay can skip records that are already folded in,
+    // and the key check of the key its records are encrypted under.
+    public static void saveUserCredentials(String username, List<ServiceCredential> credentials,
+                                           long journalSequence, byte[] keyCheck) {
+        long started = Metrics.start();
+        Path credentialsPath = Paths.get(getUserCredentialsPath(username));
+        try {
+            replaceFile(credentialsPath,
+                    out -> VaultCodec.writeCredentials(out, credentials, journalSequence, keyCheck));
+            if (Metrics.ENABLED) {
+                Metrics.VAULT_SAVE.stop(started);
+                Metrics.VAULT_BYTES_WRITTEN.add(Files.size(credentialsPath));
+            }
         } catch (IOException e) {
             throw new RuntimeException("Error saving credentials", e);
         }
     }
 
-    // Load credentials for a user
+    // Load the credentials snapshot for a user. Large current-format vaults are memory-mapped
+    // and decoded lazily; legacy and older binary files are rewritten in the current format.
+    // A vault that exists but cannot be read is reported rather than taken for an empty one,
+    // which the next save would otherwise write over.
+    public static CredentialSnapshot loadUserCredentials(String username) {
+        Path credentialsPath = Paths.get(getUserCredentialsPath(username));
+        if (!Files.exists(credentialsPath)) {
+            return new CredentialSnapshot(new ArrayList<>(), 0, null);
+        }
+
+        long started = Metrics.start();
+        CredentialSnapshot snapshot;
+        boolean outdated;
+        try (InputStream in = openInput(credentialsPath)) {
+            if (VaultCodec.isLegacyFormat(in)) {
+                outdated = true;
+                snapshot = readLegacyCredentials(new ObjectInputStream(in));
+            } else {
+                int version = VaultCodec.peekCredentialsVersion(in);
+                outdated = version < VaultCodec.CREDENTIALS_VERSION;
+                if (!outdated && Files.size(credentialsPath) >= MAPPED_LOAD_THRESHOLD) {
+                    MappedCredentialStore store = MappedCredentialStore.open(credentialsPath);
+                    snapshot = new CredentialSnapshot(store.asList(), store.getJournalSequence(),
+                            store.getKeyCheck());
+                } else {
+                    snapshot = VaultCodec.readCredentials(new DataInputStream(in));
+                }
+            }
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            throw new CorruptVaultException("Vault file " + credentialsPath + " cannot be read", e);
+        }
+        if (Metrics.ENABLED) {
+            // Large vaults are mapped, so this is the time to map them rather than decode every entry
+            Metrics.VAULT_LOAD.stop(started);
+            try {
+                Metrics.VAULT_BYTES_READ.add(Files.size(credentialsPath));
+            } catch (IOException e) {
+                // Only a statistic
+            }
+        }
+
+        if (outdated) {
+            saveUserCredentials(username, snapshot.getCredentials(), snapshot.getJournalSequence(),
+                    snapshot.getKeyCheck());
+        }
+        return snapshot;
+    }
+
+    // Write a complete vault next to the live one without touching it; see commitStagedCredentials
+    public static void saveStagedCredentials(String username, List<ServiceCredential> credentials,
+                                             long journalSequence, byte[] keyCheck) {
+        try {
+            replaceFile(getStagedCredentialsPath(username),
+                    out -> VaultCodec.writeCredentials(out, credentials, journalSequence, keyCheck));
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving credentials", e);
+        }
+    }
+
+    // Key check of a staged vault, or null if there is none (or it cannot be read)
+    public static byte[] readStagedKeyCheck(String username) {
+        Path staged = getStagedCredentialsPath(username);
+        if (!Files.exists(staged)) {
+            return null;
+        }
+        try (InputStream in = openInput(staged)) {
+            return VaultCodec.readKeyCheck(new DataInputStream(in));
+        } catch (IOException e) {
+            System.err.println("Error reading staged credentials: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Swap a staged vault in as the live one
+    public static void commitStagedCredentials(String username) {
+        try {
+            moveDurably(getStagedCredentialsPath(username), Paths.get(getUserCredentialsPath(username)));
+        } catch (IOException e) {
+            throw new RuntimeException("Error committing staged credentials", e);
+        }
+    }
+
+    public static void discardStagedCredentials(String username) {
+        try {
+            Files.deleteIfExists(getStagedCredentialsPath(username));
+        } catch (IOException e) {
+            throw new RuntimeException("Error discarding staged credentials", e);
+        }
+    }
+
+    // Reveal statistics of a vault, or empty ones if there are none. They only steer
+    // prefetching, so an unreadable file is reported and otherwise ignored.
+    public static AccessStats loadAccessStats(String username) {
+        Path statsPath = getAccessStatsPath(username);
+        if (!Files.exists(statsPath)) {
+            return new AccessStats();
+        }
+        try (InputStream in = openInput(statsPath)) {
+            return VaultCodec.readAccessStats(new DataInputStream(in));
+        } catch (IOException e) {
+            System.err.println("Error reading access statistics: " + e.getMessage());
+            return new AccessStats();
+        }
+    }
+
+    public static void saveAccessStats(String username, AccessStats stats) {
+        try {
+            replaceFile(getAccessStatsPath(username), out -> VaultCodec.writeAccessStats(out, stats));
+            stats.markSaved();
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving access statistics", e);
+        }
+    }
+
+    // Take the exclusive lock guarding a user's vault files against other processes, or
+    // return null if another process holds it. The lock is held until releaseVaultLock.
+    public static FileLock tryLockVault(String username) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(getVaultLockPath(username),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                try {
+                    migrateCredentialFiles(username);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                    throw new RuntimeException("Error renaming vault files", e);
+                }
+                return lock;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Held by this JVM through a different store
+        } catch (IOException e) {
+            throw new RuntimeException("Error locking vault", e);
+        }
+        closeQuietly(channel);
+        return null;
+    }
+
+    // Rename vault files an older version named after the plain account name. Runs under the
+    // hashed vault lock. Each file moves in one step, so one left under both names was written
+    // since an interrupted migration and the hashed one is kept; the stale one is removed rather
+    // than left to be moved in later, once the newer file is gone. Names that were never valid
+    // file names there have nothing to migrate.
+    private static void migrateCredentialFiles(String username) throws IOException {
+        Path directory = Paths.get(DATA_DIR, CREDENTIALS_DIR);
+        try {
+            if (!directory.equals(directory.resolve(username + LOCK_SUFFIX).getParent())) {
+                return;
+            }
+        } catch (InvalidPathException e) {
+            return;
+        }
+        // A name that is itself the hash of a registered account would pick up that account's files
+        if (Files.exists(Paths.get(DATA_DIR, USERS_DIR, username.substring(0, Math.min(2, username.length())),
+                username + USER_RECORD_SUFFIX))) {
+            return;
+        }
+        boolean moved = false;
+        for (String suffix : MIGRATED_SUFFIXES) {
+            Path legacy = directory.resolve(username + suffix);
+            if (!Files.isRegularFile(legacy)) {
+                continue;
+            }
+            Path target = getVaultFilePath(username, suffix);
+            if (suffix.equals(LOCK_SUFFIX) || Files.exists(target)) {
+                Files.delete(legacy);
+            } else {
+                Files.move(legacy, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            moved = true;
+        }
+        if (moved) {
+            syncDirectory(directory);
+        }
+    }
+
+    public static void releaseVaultLock(FileLock lock) {
+        // Closing the channel releases the lock
+        closeQuietly(lock.channel());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            System.err.println("Error closing file: " + e.getMessage());
+        }
+    }
+
     @SuppressWarnings("unchecked")
-    public static List<ServiceCredential> loadUserCredentials(String username) {
-        String credentialsPath = getUserCredentialsPath(username);
-        if (!Files.exists(Paths.get(credentialsPath))) {
-            return new ArrayList<>();
+    private static CredentialSnapshot readLegacyCredentials(ObjectInputStream ois)
+            throws IOException, ClassNotFoundException {
+        List<ServiceCredential> stored = (List<ServiceCredential>) ois.readObject();
+        List<ServiceCredential> credentials = new ArrayList<>(stored.size());
+        for (ServiceCredential credential : stored) {
+            credentials.add(credential.withId(ServiceCredential.legacyId(credentials.size())));
         }
+        long journalSequence;
+        try {
+            journalSequence = ois.readLong();
+        } catch (EOFException e) {
+            // Written before journaling existed
+            journalSequence = 0;
+        }
+        return new CredentialSnapshot(credentials, journalSequence, null);
+    }
 
-        try (ObjectInputStream ois = new ObjectInputStream(
-                new FileInputStream(credentialsPath))) {
-            return (List<ServiceCredential>) ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error loading credentials: " + e.getMessage());
-            return new ArrayList<>();
+    // Write a file next to its target, force it to disk and atomically swap it in, so a crash
+    // leaves either the old or the new file and never a truncated one. Replacing rather than
+    // overwriting also keeps existing mappings of the old file valid.
+    private static void replaceFile(Path target, ContentWriter writer) throws IOException {
+        Path temp = writeTempFile(target, writer);
+        moveDurably(temp, target);
+    }
+
+    // Without forcing the data first, a crash soon after the rename can leave the new name
+    // pointing at an empty file on file systems that reorder metadata and data writes
+    private static Path writeTempFile(Path target, ContentWriter writer) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            writer.write(out);
+            out.flush();
+            channel.force(true);
+        }
+        return temp;
+    }
+
+    // Rename over the target in one step, then make the rename itself durable
+    private static void moveDurably(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(target.getParent());
+    }
+
+    // Force a directory's entries to disk after creating or renaming files in it. Some
+    // platforms (Windows) cannot open a directory; there the rename is already durable.
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported here
+        }
+    }
+
+    private static InputStream openInput(Path path) throws IOException {
+        return new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+    }
+
+    // users/<first byte of hash>/<SHA-256 of name>.usr; hashing keeps any name a valid file name
+    private static Path getUserPath(String username) {
+        String hash = sha256Hex(username);
+        return Paths.get(DATA_DIR, USERS_DIR, hash.substring(0, 2), hash + USER_RECORD_SUFFIX);
+    }
+
+    private static String sha256Hex(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
         }
     }
 
+    // credentials/<SHA-256 of name><suffix>, so like the user record any name is safe here
+    private static Path getVaultFilePath(String username, String suffix) {
+        return Paths.get(DATA_DIR, CREDENTIALS_DIR, sha256Hex(username) + suffix);
+    }
+
     private static String getUserCredentialsPath(String username) {
-        return Paths.get(DATA_DIR, CREDENTIALS_DIR, username + "_credentials.dat").toString();
+        return getVaultFilePath(username, CREDENTIALS_SUFFIX).toString();
+    }
+
+    private static Path getStagedCredentialsPath(String username) {
+        return getVaultFilePath(username, STAGED_SUFFIX);
+    }
+
+    private static Path getAccessStatsPath(String username) {
+        return getVaultFilePath(username, ACCESS_STATS_SUFFIX);
+    }
+
+    private static Path getVaultLockPath(String username) {
+        return getVaultFilePath(username, LOCK_SUFFIX);
+    }
+
+    static Path getJournalPath(String username) {
+        return getVaultFilePath(username, JOURNAL_SUFFIX);
+    }
+
+    static Path getCompactingJournalPath(String username) {
+        return getVaultFilePath(username, COMPACTING_JOURNAL_SUFFIX);
+    }
+
+    private interface ContentWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // A vault file that exists but cannot be decoded. It is left as it is so it can be
+    // restored or recovered by hand.
+    public static class CorruptVaultException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public CorruptVaultException(String message, Throwable cause) {
+            super(message, cause);
+        }
+
+        public CorruptVaultException(String message) {
+            super(message);
+        }
+    }
+
+    // Container for a loaded credentials snapshot
+    public static class CredentialSnapshot {
+        private final List<ServiceCredential> credentials;
+        private final long journalSequence;
+        private final byte[] keyCheck;
+
+        public CredentialSnapshot(List<ServiceCredential> credentials, long journalSequence, byte[] keyCheck) {
+            this.credentials = credentials;
+            this.journalSequence = journalSequence;
+            this.keyCheck = keyCheck;
+        }
+
+        public List<ServiceCredential> getCredentials() { return credentials; }
+        public long getJournalSequence() { return journalSequence; }
+        // Null when the snapshot predates key checks or has none recorded
+        public byte[] getKeyCheck() { return keyCheck; }
     }
 }
\ No newline at end of file
@@ -0,0 +1,258 @@
+import java.io.*;
+import java.util.*;
+
+// Just enough JSON for flat objects whose members are strings, numbers, booleans or null,
+// as used by the HTTP API and credential import/export. Numbers and booleans come back as
+// their text. Reading is streaming: an array of objects is read one object at a time, so
+// memory stays bounded however long the array is.
+public class Json {
+
+    public static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+        appendQuoted(quoted, value);
+        return quoted.toString();
+    }
+
+    public static void appendQuoted(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    // A whole document holding one flat object; an empty document is an empty object
+    public static Map<String, String> parseObject(String text) throws ParseException {
+        try {
+            Tokenizer tokenizer = new Tokenizer(new StringReader(text));
+            Map<String, String> members = tokenizer.peekNonWhitespace() == -1
+                    ? new HashMap<>() : tokenizer.readObject();
+            if (tokenizer.peekNonWhitespace() != -1) {
+                throw tokenizer.error("Trailing characters after JSON object");
+            }
+            return members;
+        } catch (ParseException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ParseException(e.getMessage());
+        }
+    }
+
+    // Reads a top-level array of flat objects one element at a time
+    public static class ArrayReader implements Closeable {
+        private final Tokenizer tokenizer;
+        private boolean started;
+        private boolean finished;
+
+        public ArrayReader(Reader reader) {
+            this.tokenizer = new Tokenizer(reader);
+        }
+
+        // The next object, or null after the last one
+        public Map<String, String> next() throws IOException {
+            if (finished) {
+                return null;
+            }
+            if (!started) {
+                started = true;
+                tokenizer.expect('[');
+                if (tokenizer.peekNonWhitespace() == ']') {
+                    tokenizer.read();
+                    return finish();
+                }
+            } else {
+                int c = tokenizer.peekNonWhitespace();
+                tokenizer.read();
+                if (c == ']') {
+                    return finish();
+                }
+                if (c != ',') {
+                    throw tokenizer.error("Expected ',' or ']'");
+                }
+            }
+            return tokenizer.readObject();
+        }
+
+        // Line of the input the reader has got to, for error reports
+        public int getLine() {
+            return tokenizer.line;
+        }
+
+        private Map<String, String> finish() throws IOException {
+            finished = true;
+            if (tokenizer.peekNonWhitespace() != -1) {
+                throw tokenizer.error("Trailing characters after JSON array");
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            tokenizer.reader.close();
+        }
+    }
+
+    public static class ParseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ParseException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Tokenizer {
+        final Reader reader;
+        final char[] buffer = new char[8192];
+        int position;
+        int limit;
+        int line = 1;
+
+        Tokenizer(Reader reader) {
+            this.reader = reader;
+        }
+
+        int peek() throws IOException {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position];
+        }
+
+        int read() throws IOException {
+            int c = peek();
+            if (c != -1) {
+                position++;
+            }
+            if (c == '\n') {
+                line++;
+            }
+            return c;
+        }
+
+        int peekNonWhitespace() throws IOException {
+            while (peek() != -1 && Character.isWhitespace(peek())) {
+                read();
+            }
+            return peek();
+        }
+
+        void expect(char expected) throws IOException {
+            if (peekNonWhitespace() != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+            read();
+        }
+
+        ParseException error(String message) {
+            return new ParseException(message + " on line " + line);
+        }
+
+        Map<String, String> readObject() throws IOException {
+            Map<String, String> members = new HashMap<>();
+            expect('{');
+            if (peekNonWhitespace() == '}') {
+                read();
+                return members;
+            }
+            while (true) {
+                peekNonWhitespace();
+                String name = readString();
+                expect(':');
+                members.put(name, readValue());
+                int c = peekNonWhitespace();
+                read();
+                if (c == '}') {
+                    return members;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        // Strings as they are, numbers and booleans as their text, null as null
+        String readValue() throws IOException {
+            if (peekNonWhitespace() == '"') {
+                return readString();
+            }
+            StringBuilder literal = new StringBuilder();
+            while (peek() != -1 && "{}[],: \t\r\n\"".indexOf(peek()) < 0) {
+                literal.append((char) read());
+            }
+            if (literal.length() == 0) {
+                throw error("Only flat JSON objects are accepted");
+            }
+            String text = literal.toString();
+            return text.equals("null") ? null : text;
+        }
+
+        String readString() throws IOException {
+            if (peek() != '"') {
+                throw error("Expected '\"'");
+            }
+            read();
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                int c = read();
+                if (c == -1) {
+                    throw error("Unterminated string");
+                }
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append((char) c);
+                    continue;
+                }
+                int escaped = read();
+                switch (escaped) {
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0) {
+                                throw error("Malformed unicode escape");
+                            }
+                            code = code * 16 + digit;
+                        }
+                        value.append((char) code);
+                        break;
+                    case -1:
+                        throw error("Unterminated string");
+                    default:
+                        value.append((char) escaped);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+// Picks KDF cost parameters for new accounts so that one derivation takes roughly a target
+// time on the current host. The algorithm and budget come from system properties:
+//   -Danticloud.kdf=pbkdf2|scrypt        (default pbkdf2)
+//   -Danticloud.kdfTargetMillis=250
+//   -Danticloud.scryptMaxMemoryMb=128
+// The result is measured once per JVM and reused for every registration.
+public class KdfCalibrator {
+    private static final long DEFAULT_TARGET_MILLIS = 250;
+    private static final int MIN_PBKDF2_ITERATIONS = CryptoUtil.HASH_ITERATIONS;
+    private static final int PBKDF2_PROBE_ITERATIONS = 20_000;
+    private static final int SCRYPT_R = 8;
+    private static final int SCRYPT_P = 1;
+    private static final int MIN_SCRYPT_N = 1 << 14;
+    private static final int SCRYPT_PROBE_N = 1 << 12;
+    private static final int PROBE_ROUNDS = 3;
+    private static final char[] CALIBRATION_PASSWORD = "calibration".toCharArray();
+
+    private static KdfParameters registrationParameters;
+
+    // Parameters for a new account, calibrated on first use
+    public static synchronized KdfParameters registrationParameters() {
+        if (registrationParameters == null) {
+            String algorithm = System.getProperty("anticloud.kdf", "pbkdf2");
+            long targetMillis = Long.getLong("anticloud.kdfTargetMillis", DEFAULT_TARGET_MILLIS);
+            if (algorithm.equalsIgnoreCase("scrypt")) {
+                long maxMemoryMb = Long.getLong("anticloud.scryptMaxMemoryMb", 128);
+                registrationParameters = calibrateScrypt(targetMillis, maxMemoryMb);
+            } else {
+                registrationParameters = calibratePbkdf2(targetMillis);
+            }
+        }
+        return registrationParameters;
+    }
+
+    // Scale a short PBKDF2 probe up to the budget, never going below the historical default
+    public static KdfParameters calibratePbkdf2(long targetMillis) {
+        double probeNanos = probe(new Pbkdf2Kdf(PBKDF2_PROBE_ITERATIONS));
+        double iterations = PBKDF2_PROBE_ITERATIONS * (targetMillis * 1_000_000.0 / probeNanos);
+        long rounded = Math.round(iterations / 1000) * 1000;
+        return KdfParameters.pbkdf2((int) Math.min(Integer.MAX_VALUE, Math.max(MIN_PBKDF2_ITERATIONS, rounded)));
+    }
+
+    // scrypt time grows linearly in N; pick the largest power of two that fits the time and memory budgets
+    public static KdfParameters calibrateScrypt(long targetMillis, long maxMemoryMb) {
+        double probeNanos = probe(new ScryptKdf(SCRYPT_PROBE_N, SCRYPT_R, SCRYPT_P));
+        double budgetN = SCRYPT_PROBE_N * (targetMillis * 1_000_000.0 / probeNanos);
+        long maxN = maxMemoryMb * 1024 * 1024 / (128L * SCRYPT_R);
+
+        int n = MIN_SCRYPT_N;
+        while ((long) n * 2 <= budgetN && (long) n * 2 <= maxN) {
+            n *= 2;
+        }
+        return KdfParameters.scrypt(n, SCRYPT_R, SCRYPT_P);
+    }
+
+    // Fastest of a few timed runs after warming up the JIT, in nanoseconds
+    private static double probe(KeyDerivationFunction kdf) {
+        byte[] salt = CryptoUtil.generateSalt();
+        for (int i = 0; i < PROBE_ROUNDS; i++) {
+            kdf.derive(CALIBRATION_PASSWORD, salt, 32);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_ROUNDS; i++) {
+            long start = System.nanoTime();
+            kdf.derive(CALIBRATION_PASSWORD, salt, 32);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return Math.max(best, 1);
+    }
+}
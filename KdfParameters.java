@@ -0,0 +1,68 @@
+import java.io.Serializable;
+
+// Algorithm and cost settings a user's master key was derived with. Stored alongside
+// each account so the cost can change per deployment without breaking existing logins.
+public class KdfParameters implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Algorithm {
+        PBKDF2_SHA256(1), SCRYPT(2);
+
+        private final int id;
+
+        Algorithm(int id) {
+            this.id = id;
+        }
+
+        public int getId() { return id; }
+
+        public static Algorithm fromId(int id) {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.id == id) {
+                    return algorithm;
+                }
+            }
+            throw new IllegalArgumentException("Unknown KDF algorithm " + id);
+        }
+    }
+
+    private final Algorithm algorithm;
+    // PBKDF2 iteration count, or the scrypt CPU/memory cost N
+    private final int cost;
+    // scrypt block size r and parallelization p; unused for PBKDF2
+    private final int blockSize;
+    private final int parallelism;
+
+    public KdfParameters(Algorithm algorithm, int cost, int blockSize, int parallelism) {
+        this.algorithm = algorithm;
+        this.cost = cost;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+    }
+
+    public static KdfParameters pbkdf2(int iterations) {
+        return new KdfParameters(Algorithm.PBKDF2_SHA256, iterations, 0, 0);
+    }
+
+    public static KdfParameters scrypt(int n, int r, int p) {
+        return new KdfParameters(Algorithm.SCRYPT, n, r, p);
+    }
+
+    // What every account created before per-user parameters existed was derived with
+    public static KdfParameters legacyDefault() {
+        return pbkdf2(CryptoUtil.HASH_ITERATIONS);
+    }
+
+    public Algorithm getAlgorithm() { return algorithm; }
+    public int getCost() { return cost; }
+    public int getBlockSize() { return blockSize; }
+    public int getParallelism() { return parallelism; }
+
+    @Override
+    public String toString() {
+        if (algorithm == Algorithm.SCRYPT) {
+            return String.format("scrypt(N=%d, r=%d, p=%d)", cost, blockSize, parallelism);
+        }
+        return String.format("PBKDF2-HMAC-SHA256(%d iterations)", cost);
+    }
+}
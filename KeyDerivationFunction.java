@@ -0,0 +1,20 @@
+// Password-based key derivation with parameters fixed at construction
+public interface KeyDerivationFunction {
+
+    // Derive length bytes of key material from a password and salt. The password array
+    // belongs to the caller, who wipes it; implementations wipe their own copies.
+    byte[] derive(char[] password, byte[] salt, int length);
+
+    KdfParameters getParameters();
+
+    static KeyDerivationFunction forParameters(KdfParameters parameters) {
+        switch (parameters.getAlgorithm()) {
+            case PBKDF2_SHA256:
+                return new Pbkdf2Kdf(parameters.getCost());
+            case SCRYPT:
+                return new ScryptKdf(parameters.getCost(), parameters.getBlockSize(), parameters.getParallelism());
+            default:
+                throw new IllegalArgumentException("Unsupported KDF " + parameters.getAlgorithm());
+        }
+    }
+}
@@ -1,8 +1,13 @@
-import java.io.Console;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 
 public class MainApp {
+    private static final int SEARCH_RESULT_LIMIT = 20;
+
     private PasswordManager passwordManager;
     private Scanner scanner;
     private Console console;
@@ -15,7 +20,17 @@ public class MainApp {
 
     public static void main(String[] args) {
         // Check if GUI mode is requested
-        if (args.length > 0 && args[0].equals("--gui")) {
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? parsePort(args[1]) : VaultHttpApi.DEFAULT_PORT;
+            if (port < 0) {
+                System.err.println("Usage: java MainApp --server [port], with a port from 1 to 65535");
+                System.exit(2);
+            }
+            runServer(port);
+        } else if (args.length > 0 && BatchCli.isCommand(args[0])) {
+            // Run scripted commands under a single login, without the menus
+            System.exit(BatchCli.run(args));
+        } else if (args.length > 0 && args[0].equals("--gui")) {
             // Launch GUI
             javax.swing.SwingUtilities.invokeLater(() -> {
                 new PasswordManagerGUI();
@@ -27,9 +42,38 @@ public class MainApp {
         }
     }
 
+    // The port number given on the command line, or -1 if it is not a valid port
+    private static int parsePort(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            return port >= 1 && port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Serve the local HTTP API until the process is stopped
+    private static void runServer(int port) {
+        VaultServer server = new VaultServer();
+        VaultHttpApi api;
+        try {
+            api = new VaultHttpApi(server, port);
+        } catch (java.io.IOException e) {
+            System.err.println("Could not start the API server: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            api.stop();
+            server.shutdown();
+        }));
+        api.start();
+        System.out.println("Password manager API listening on http://127.0.0.1:" + api.getPort() + "/api/");
+    }
+
     public void run() {
         System.out.println("=== Welcome to Secure Password Manager ===");
-        System.out.println("(To use GUI mode, run with --gui argument)");
+        System.out.println("(To use GUI mode, run with --gui argument; for the local API, --server [port]; for scripts, batch)");
 
         while (true) {
             if (!passwordManager.isLoggedIn()) {
@@ -66,9 +110,13 @@ public class MainApp {
         System.out.println("\n=== Password Manager - " + passwordManager.getCurrentUser().getUsername() + " ===");
         System.out.println("1. Add new credential");
         System.out.println("2. View credentials");
-        System.out.println("3. View password");
-        System.out.println("4. Remove credential");
-        System.out.println("5. Logout");
+        System.out.println("3. Search credentials");
+        System.out.println("4. View password");
+        System.out.println("5. Remove credential");
+        System.out.println("6. Change master password");
+        System.out.println("7. Import credentials (CSV/JSON)");
+        System.out.println("8. Export credentials (CSV/JSON)");
+        System.out.println("9. Logout");
         System.out.print("Choose an option: ");
 
         int choice = getIntInput();
@@ -80,12 +128,24 @@ public class MainApp {
                 viewCredentials();
                 break;
             case 3:
-                viewPassword();
+                searchCredentials();
                 break;
             case 4:
-                removeCredential();
+                viewPassword();
                 break;
             case 5:
+                removeCredential();
+                break;
+            case 6:
+                changeMasterPassword();
+                break;
+            case 7:
+                importCredentials();
+                break;
+            case 8:
+                exportCredentials();
+                break;
+            case 9:
                 logout();
                 break;
             default:
@@ -97,15 +157,19 @@ public class MainApp {
         System.out.print("Enter username: ");
         String username = scanner.nextLine().trim();
 
-        String password = readPassword("Enter password: ");
-        String confirmPassword = readPassword("Confirm password: ");
+        char[] password = readPassword("Enter password: ");
+        char[] confirmPassword = readPassword("Confirm password: ");
+        boolean matches = Arrays.equals(password, confirmPassword);
+        SecretBuffer.wipe(confirmPassword);
 
-        if (!password.equals(confirmPassword)) {
+        if (!matches) {
+            SecretBuffer.wipe(password);
             System.out.println("Passwords do not match.");
             return;
         }
 
         PasswordManager.RegistrationResult result = passwordManager.registerUser(username, password);
+        SecretBuffer.wipe(password);
         switch (result) {
             case SUCCESS:
                 System.out.println("User registered successfully!");
@@ -125,9 +189,10 @@ public class MainApp {
     private void login() {
         System.out.print("Enter username: ");
         String username = scanner.nextLine().trim();
-        String password = readPassword("Enter password: ");
+        char[] password = readPassword("Enter password: ");
 
         PasswordManager.LoginResult result = passwordManager.login(username, password);
+        SecretBuffer.wipe(password);
         switch (result) {
             case SUCCESS:
                 System.out.println("Login successful! Welcome, " + username);
@@ -141,6 +206,12 @@ public class MainApp {
             case EMPTY_CREDENTIALS:
                 System.out.println("Username and password cannot be empty.");
                 break;
+            case VAULT_IN_USE:
+                System.out.println("This vault is open in another program. Close it there first.");
+                break;
+            case VAULT_CORRUPTED:
+                System.out.println("The vault file is damaged and was left untouched. Restore it from a backup.");
+                break;
         }
     }
 
@@ -149,6 +220,130 @@ public class MainApp {
         System.out.println("Logged out successfully.");
     }
 
+    private void changeMasterPassword() {
+        char[] currentPassword = readPassword("Enter current master password: ");
+        char[] newPassword = readPassword("Enter new master password: ");
+        char[] confirmPassword = readPassword("Confirm new master password: ");
+        boolean matches = Arrays.equals(newPassword, confirmPassword);
+        SecretBuffer.wipe(confirmPassword);
+
+        if (!matches) {
+            SecretBuffer.wipe(currentPassword);
+            SecretBuffer.wipe(newPassword);
+            System.out.println("Passwords do not match!");
+            return;
+        }
+
+        System.out.println("Re-encrypting credentials...");
+        PasswordManager.MasterPasswordChangeResult result;
+        try {
+            result = passwordManager.changeMasterPassword(currentPassword, newPassword);
+        } finally {
+            SecretBuffer.wipe(currentPassword);
+            SecretBuffer.wipe(newPassword);
+        }
+        switch (result.getResult()) {
+            case SUCCESS:
+                System.out.printf("Master password changed. Re-encrypted %d credentials in %d ms (%.0f entries/s).%n",
+                        result.getEntries(), result.getElapsedMillis(), result.getEntriesPerSecond());
+                break;
+            case WEAK_PASSWORD:
+                System.out.println("Password must be at least 6 characters long.");
+                break;
+            case INVALID_MASTER_PASSWORD:
+                System.out.println("Invalid master password.");
+                break;
+            case NOT_LOGGED_IN:
+                System.out.println("You must be logged in.");
+                break;
+            case ENCRYPTION_ERROR:
+                System.out.println("Error re-encrypting credentials. The master password was not changed.");
+                break;
+            case IO_ERROR:
+                System.out.println("Could not save the vault to disk. The master password was not changed.");
+                break;
+        }
+    }
+
+    private void importCredentials() {
+        System.out.print("Enter the file to import (.csv or .json): ");
+        String fileName = scanner.nextLine().trim();
+        Path path = Paths.get(fileName);
+        if (!Files.isRegularFile(path)) {
+            System.out.println("File not found.");
+            return;
+        }
+
+        CredentialTransfer.Report report;
+        try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            report = passwordManager.importCredentials(in, CredentialTransfer.Format.forFileName(fileName));
+        } catch (IOException e) {
+            System.out.println("Error reading file: " + e.getMessage());
+            return;
+        }
+        printTransferReport("Imported", report);
+    }
+
+    private void exportCredentials() {
+        System.out.print("Enter the file to export to (.csv or .json): ");
+        String fileName = scanner.nextLine().trim();
+        Path path = Paths.get(fileName);
+        if (Files.exists(path)) {
+            System.out.println("File already exists.");
+            return;
+        }
+        System.out.println("Warning: the exported file holds every password in plain text.");
+        char[] masterPassword = readPassword("Enter your master password: ");
+
+        CredentialTransfer.Report report;
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW)) {
+            report = passwordManager.exportCredentials(out, CredentialTransfer.Format.forFileName(fileName),
+                    masterPassword);
+        } catch (IOException e) {
+            System.out.println("Error writing file: " + e.getMessage());
+            return;
+        } finally {
+            SecretBuffer.wipe(masterPassword);
+        }
+        if (report.getResult() == PasswordManager.CredentialResult.INVALID_MASTER_PASSWORD) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // Nothing was written to it
+            }
+        }
+        printTransferReport("Exported", report);
+    }
+
+    private void printTransferReport(String verb, CredentialTransfer.Report report) {
+        switch (report.getResult()) {
+            case SUCCESS:
+                System.out.printf("%s %d credentials in %d ms (%.0f entries/s, %d batches).%n", verb,
+                        report.getEntries(), report.getElapsedMillis(), report.getEntriesPerSecond(),
+                        report.getBatches());
+                if (report.getSkipped() > 0) {
+                    System.out.println("Skipped " + report.getSkipped() + " entries with a missing field.");
+                }
+                if (report.getError() != null) {
+                    System.out.println("Stopped early: " + report.getError());
+                }
+                break;
+            case INVALID_MASTER_PASSWORD:
+                System.out.println("Invalid master password.");
+                break;
+            case NOT_LOGGED_IN:
+                System.out.println("You must be logged in.");
+                break;
+            case IO_ERROR:
+                System.out.println("Could not save the imported credentials to disk after " + report.getEntries()
+                        + " credentials. Log out and back in to see what was saved.");
+                break;
+            default:
+                System.out.println("Error with encryption/decryption after " + report.getEntries()
+                        + " credentials: " + report.getError());
+        }
+    }
+
     private void addCredential() {
         System.out.print("Enter service name (e.g., Gmail, Facebook): ");
         String serviceName = scanner.nextLine().trim();
@@ -156,9 +351,10 @@ public class MainApp {
         System.out.print("Enter username/email: ");
         String username = scanner.nextLine().trim();
 
-        String password = readPassword("Enter password: ");
+        char[] password = readPassword("Enter password: ");
 
         PasswordManager.CredentialResult result = passwordManager.addCredential(serviceName, username, password);
+        SecretBuffer.wipe(password);
         switch (result) {
             case SUCCESS:
                 System.out.println("Credential added successfully!");
@@ -172,6 +368,9 @@ public class MainApp {
             case ENCRYPTION_ERROR:
                 System.out.println("Error encrypting password.");
                 break;
+            case IO_ERROR:
+                System.out.println("Could not save the change to disk. Log out and back in to see what was saved.");
+                break;
         }
     }
 
@@ -189,6 +388,22 @@ public class MainApp {
         }
     }
 
+    private void searchCredentials() {
+        System.out.print("Search for: ");
+        String query = scanner.nextLine().trim();
+
+        List<ServiceCredential> results = passwordManager.searchCredentials(query, SEARCH_RESULT_LIMIT);
+        if (results.isEmpty()) {
+            System.out.println("No matching credentials.");
+            return;
+        }
+
+        System.out.println("\n=== Search Results ===");
+        for (int i = 0; i < results.size(); i++) {
+            System.out.println((i + 1) + ". " + results.get(i));
+        }
+    }
+
     private void viewPassword() {
         List<ServiceCredential> credentials = passwordManager.getCredentials();
 
@@ -206,14 +421,19 @@ public class MainApp {
             return;
         }
 
-        String masterPassword = readPassword("Enter your master password to view: ");
+        char[] masterPassword = readPassword("Enter your master password to view: ");
 
         PasswordManager.PasswordRetrievalResult result = passwordManager.getDecryptedPassword(
                 credentials.get(index), masterPassword);
+        SecretBuffer.wipe(masterPassword);
 
         switch (result.getResult()) {
             case SUCCESS:
-                System.out.println("Password: " + result.getPassword());
+                char[] password = result.getPasswordChars();
+                result.close();
+                System.out.print("Password: ");
+                System.out.println(password);
+                SecretBuffer.wipe(password);
                 System.out.print("Press Enter to continue...");
                 scanner.nextLine();
                 break;
@@ -241,21 +461,27 @@ public class MainApp {
         System.out.print("Enter the number of the credential to remove: ");
         int index = getIntInput() - 1;
 
-        if (passwordManager.removeCredential(index)) {
-            System.out.println("Credential removed successfully!");
-        } else {
-            System.out.println("Invalid selection.");
+        switch (passwordManager.removeCredential(index)) {
+            case SUCCESS:
+                System.out.println("Credential removed successfully!");
+                break;
+            case IO_ERROR:
+                System.out.println("Could not save the change to disk. Log out and back in to see what was saved.");
+                break;
+            default:
+                System.out.println("Invalid selection.");
         }
     }
 
-    private String readPassword(String prompt) {
+    // The caller wipes the returned array once the password has been used
+    private char[] readPassword(String prompt) {
         System.out.print(prompt);
         if (console != null) {
             char[] passwordChars = console.readPassword();
-            return new String(passwordChars);
+            return passwordChars != null ? passwordChars : new char[0];
         } else {
-            // Fallback for IDEs that don't support Console
-            return scanner.nextLine();
+            // Fallback for IDEs that don't support Console; Scanner only hands out Strings
+            return scanner.nextLine().toCharArray();
         }
     }
 
@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Read-only view of a current-format credentials file through a MappedByteBuffer. The file
+// ends with a table of int record offsets, so record i is found without scanning; its
+// service name and username are decoded only when asked for, and its IV and
+// ciphertext only when the password is actually decrypted.
+//
+// The offset table is checked when the file is opened, and every length read from a record
+// when it is used, so a damaged file fails with CorruptVaultException rather than an
+// IndexOutOfBoundsException or BufferUnderflowException from deep inside the buffer.
+public class MappedCredentialStore {
+    // Scheme byte plus credential id precede the length-prefixed fields
+    private static final int FIELDS_OFFSET = 1 + 8;
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int tableOffset;
+    private final long journalSequence;
+    private final byte[] keyCheck;
+
+    private MappedCredentialStore(MappedByteBuffer buffer, int count, int tableOffset,
+                                  long journalSequence, byte[] keyCheck) {
+        this.buffer = buffer;
+        this.count = count;
+        this.tableOffset = tableOffset;
+        this.journalSequence = journalSequence;
+        this.keyCheck = keyCheck;
+    }
+
+    // Map a credentials file that has already been identified as the current version
+    public static MappedCredentialStore open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Credentials file too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (size < VaultCodec.CREDENTIALS_HEADER_LENGTH
+                    || buffer.getInt(0) != VaultCodec.CREDENTIALS_MAGIC
+                    || buffer.get(4) != VaultCodec.CREDENTIALS_VERSION) {
+                throw new IOException("Not a current-format credentials file");
+            }
+            long journalSequence = buffer.getLong(5);
+            int count = buffer.getInt(13);
+            byte[] keyCheck = new byte[VaultCodec.KEY_CHECK_LENGTH];
+            buffer.position(17);
+            buffer.get(keyCheck);
+            long tableOffset = size - 4L * count;
+            if (count < 0 || tableOffset < VaultCodec.CREDENTIALS_HEADER_LENGTH) {
+                throw new IOException("Corrupt record count");
+            }
+            for (int i = 0; i < count; i++) {
+                int offset = buffer.getInt((int) tableOffset + 4 * i);
+                if (!isRecordOffset(offset, (int) tableOffset)) {
+                    throw new IOException("Corrupt offset of record " + i);
+                }
+            }
+            return new MappedCredentialStore(buffer, count, (int) tableOffset, journalSequence,
+                    VaultCodec.normalizeKeyCheck(keyCheck));
+        }
+    }
+
+    public int size() { return count; }
+    public long getJournalSequence() { return journalSequence; }
+    public byte[] getKeyCheck() { return keyCheck; }
+
+    // Each record is a cipher scheme byte and the credential id, followed by
+    // service name, username, ciphertext and IV
+    public long getId(int index) {
+        return buffer.getLong(recordOffset(index) + 1);
+    }
+
+    public String getServiceName(int index) {
+        return readString(recordOffset(index) + FIELDS_OFFSET);
+    }
+
+    public String getUsername(int index) {
+        return readString(skipField(recordOffset(index) + FIELDS_OFFSET));
+    }
+
+    public CryptoUtil.EncryptedData getEncryptedPassword(int index) {
+        int record = recordOffset(index);
+        CryptoUtil.CipherScheme scheme;
+        try {
+            scheme = CryptoUtil.CipherScheme.fromId(buffer.get(record) & 0xff);
+        } catch (IllegalArgumentException e) {
+            throw new FileManager.CorruptVaultException("Corrupt record " + index, e);
+        }
+        int offset = skipField(skipField(record + FIELDS_OFFSET));
+        byte[] data = readBytes(offset);
+        byte[] iv = readBytes(skipField(offset));
+        return new CryptoUtil.EncryptedData(scheme, data, iv);
+    }
+
+    // Mutable list over the store that only creates a ServiceCredential when an element is read
+    public List<ServiceCredential> asList() {
+        return new CredentialList(this);
+    }
+
+    private int recordOffset(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + count);
+        }
+        return buffer.getInt(tableOffset + 4 * index);
+    }
+
+    // Whether a record with its scheme byte and id can start here, before the offset table
+    private static boolean isRecordOffset(int offset, int tableOffset) {
+        return offset >= VaultCodec.CREDENTIALS_HEADER_LENGTH && offset <= tableOffset - FIELDS_OFFSET;
+    }
+
+    private int skipField(int offset) {
+        return offset + 4 + fieldLength(offset);
+    }
+
+    // Length of the field at offset, which must end before the offset table
+    private int fieldLength(int offset) {
+        if (offset < VaultCodec.CREDENTIALS_HEADER_LENGTH || offset > tableOffset - 4) {
+            throw new FileManager.CorruptVaultException("Credential field outside the records at " + offset);
+        }
+        int length = buffer.getInt(offset);
+        if (length < 0 || length > tableOffset - offset - 4) {
+            throw new FileManager.CorruptVaultException("Corrupt field length " + length + " at " + offset);
+        }
+        return length;
+    }
+
+    private String readString(int offset) {
+        return new String(readBytes(offset), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes(int offset) {
+        int length = fieldLength(offset);
+        byte[] value = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + 4);
+        view.get(value);
+        return value;
+    }
+
+    // Records from the mapped file are served as lazy views. Appends go to an ordinary
+    // tail list; anything that shifts positions first materializes the views into it.
+    private static class CredentialList extends AbstractList<ServiceCredential> implements RandomAccess {
+        private MappedCredentialStore store;
+        private int mappedCount;
+        private List<ServiceCredential> elements = new ArrayList<>();
+
+        CredentialList(MappedCredentialStore store) {
+            this.store = store;
+            this.mappedCount = store.size();
+        }
+
+        @Override
+        public ServiceCredential get(int index) {
+            if (index < mappedCount) {
+                return new ServiceCredential(store, index);
+            }
+            return elements.get(index - mappedCount);
+        }
+
+        @Override
+        public int size() {
+            return mappedCount + elements.size();
+        }
+
+        @Override
+        public boolean add(ServiceCredential credential) {
+            modCount++;
+            return elements.add(credential);
+        }
+
+        @Override
+        public void add(int index, ServiceCredential credential) {
+            materialize();
+            modCount++;
+            elements.add(index, credential);
+        }
+
+        @Override
+        public ServiceCredential set(int index, ServiceCredential credential) {
+            materialize();
+            return elements.set(index, credential);
+        }
+
+        @Override
+        public ServiceCredential remove(int index) {
+            materialize();
+            modCount++;
+            return elements.remove(index);
+        }
+
+        @Override
+        public void clear() {
+            modCount++;
+            store = null;
+            mappedCount = 0;
+            elements.clear();
+        }
+
+        private void materialize() {
+            if (mappedCount == 0) {
+                return;
+            }
+            List<ServiceCredential> all = new ArrayList<>(size());
+            for (int i = 0; i < mappedCount; i++) {
+                all.add(new ServiceCredential(store, i));
+            }
+            all.addAll(elements);
+            elements = all;
+            store = null;
+            mappedCount = 0;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Latency histograms and counters for the vault's hot paths: key derivation, encryption,
+// reading and writing vault files, journal syncs and lock waits. They sit below both the
+// CLI and the GUI, so a slow login can be split into KDF, disk and decoding time.
+//
+// Off unless started with -Danticloud.metrics=true. ENABLED is a constant, so when it is
+// false the JIT drops every recording call. When on, each metric is an MBean under
+// "anticloud:type=Timer" or "anticloud:type=Counter" (e.g. in jconsole), and a summary is
+// written to stderr every anticloud.metricsLogSeconds seconds (60 by default, 0 for never).
+public final class Metrics {
+    public static final boolean ENABLED = Boolean.getBoolean("anticloud.metrics");
+
+    private static final Map<String, Timer> TIMERS = new LinkedHashMap<>();
+    private static final Map<String, Counter> COUNTERS = new LinkedHashMap<>();
+
+    public static final Timer LOGIN = timer("login", "Whole login, from reading the account to an open vault");
+    public static final Timer KDF = timer("kdf", "Password key derivation");
+    public static final Timer ENCRYPT = timer("encrypt", "Encrypting one value");
+    public static final Timer DECRYPT = timer("decrypt", "Decrypting one value");
+    public static final Timer USER_LOAD = timer("user.load", "Reading an account record");
+    public static final Timer VAULT_OPEN = timer("vault.open", "Opening a vault: snapshot, journal replay and migration");
+    public static final Timer VAULT_LOAD = timer("vault.load", "Reading and decoding a vault snapshot");
+    public static final Timer VAULT_SAVE = timer("vault.save", "Encoding and durably writing a vault snapshot");
+    public static final Timer JOURNAL_REPLAY = timer("journal.replay", "Replaying a journal when a vault is opened");
+    public static final Timer JOURNAL_SYNC = timer("journal.sync", "Forcing journal records to disk");
+    public static final Timer LOCK_WAIT = timer("lock.wait", "Acquiring a vault lock");
+    public static final Timer TASK_QUEUE_WAIT = timer("task.queueWait", "Time a background task waited to start");
+    public static final Counter VAULT_BYTES_READ = counter("vault.bytesRead", "Bytes of vault snapshots read");
+    public static final Counter VAULT_BYTES_WRITTEN = counter("vault.bytesWritten", "Bytes of vault snapshots written");
+    public static final Counter JOURNAL_BYTES = counter("journal.bytesAppended", "Bytes appended to journals");
+    public static final Counter PASSWORD_CACHE_HITS = counter("passwordCache.hits", "Passwords revealed from the cache");
+    public static final Counter PASSWORD_CACHE_MISSES = counter("passwordCache.misses", "Passwords not in the cache");
+    public static final Counter PASSWORD_CACHE_EVICTIONS = counter("passwordCache.evictions",
+            "Cached passwords wiped to make room");
+    public static final Counter PASSWORD_PREFETCHES = counter("passwordCache.prefetches",
+            "Passwords decrypted ahead of a reveal");
+
+    static {
+        if (ENABLED) {
+            registerMBeans();
+            long logSeconds = Long.getLong("anticloud.metricsLogSeconds", 60);
+            if (logSeconds > 0) {
+                ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "metrics-log");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                logger.scheduleAtFixedRate(() -> System.err.print(report()), logSeconds, logSeconds, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // Start time for Timer.stop, or 0 without reading the clock when metrics are off
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    // A read/write lock that records how long acquiring it takes, or a plain one when off
+    public static ReentrantReadWriteLock newReadWriteLock() {
+        return ENABLED ? new TimedReadWriteLock() : new ReentrantReadWriteLock();
+    }
+
+    // One line per metric that has recorded anything
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        for (Timer timer : TIMERS.values()) {
+            if (timer.getCount() > 0) {
+                report.append(String.format("metrics %-22s count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms%n",
+                        timer.name, timer.getCount(), timer.getMeanMillis(), timer.getP50Millis(),
+                        timer.getP99Millis(), timer.getMaxMillis()));
+            }
+        }
+        for (Counter counter : COUNTERS.values()) {
+            if (counter.getCount() > 0) {
+                report.append(String.format("metrics %-22s count=%d%n", counter.name, counter.getCount()));
+            }
+        }
+        return report.toString();
+    }
+
+    private static Timer timer(String name, String description) {
+        Timer timer = new Timer(name, description);
+        TIMERS.put(name, timer);
+        return timer;
+    }
+
+    private static Counter counter(String name, String description) {
+        Counter counter = new Counter(name, description);
+        COUNTERS.put(name, counter);
+        return counter;
+    }
+
+    private static void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Timer timer : TIMERS.values()) {
+                server.registerMBean(new StandardMBean(timer, TimerMBean.class),
+                        new ObjectName("anticloud:type=Timer,name=" + timer.name));
+            }
+            for (Counter counter : COUNTERS.values()) {
+                server.registerMBean(new StandardMBean(counter, CounterMBean.class),
+                        new ObjectName("anticloud:type=Counter,name=" + counter.name));
+            }
+        } catch (JMException e) {
+            System.err.println("Error registering metrics MBeans: " + e.getMessage());
+        }
+    }
+
+    public interface TimerMBean {
+        String getDescription();
+        long getCount();
+        double getMeanMillis();
+        double getP50Millis();
+        double getP90Millis();
+        double getP99Millis();
+        double getMaxMillis();
+        void reset();
+    }
+
+    public interface CounterMBean {
+        String getDescription();
+        long getCount();
+        void reset();
+    }
+
+    // Latency histogram with eight buckets per power of two of nanoseconds, so percentiles
+    // are within about 6% of the true value at any scale, in a fixed few kilobytes
+    public static final class Timer implements TimerMBean {
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKETS = (64 - 2) * SUB_BUCKETS;
+
+        private final String name;
+        private final String description;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Timer(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        // Record the time since a Metrics.start()
+        public void stop(long start) {
+            if (ENABLED) {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        public void record(long nanos) {
+            if (!ENABLED) {
+                return;
+            }
+            long value = Math.max(nanos, 0);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            totalNanos.add(value);
+            maxNanos.accumulateAndGet(value, Math::max);
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return (exponent - 2) * SUB_BUCKETS + sub;
+        }
+
+        // Middle of a bucket's range
+        private static double bucketValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 2;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 3);
+            return lower + (1L << (exponent - 3)) / 2.0;
+        }
+
+        private double percentileMillis(double fraction) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(bucketValue(i), maxNanos.get()) / 1_000_000.0;
+                }
+            }
+            return maxNanos.get() / 1_000_000.0;
+        }
+
+        @Override public String getDescription() { return description; }
+        @Override public long getCount() { return count.sum(); }
+        @Override public double getMeanMillis() {
+            long total = count.sum();
+            return total == 0 ? 0 : totalNanos.sum() / 1_000_000.0 / total;
+        }
+        @Override public double getP50Millis() { return percentileMillis(0.50); }
+        @Override public double getP90Millis() { return percentileMillis(0.90); }
+        @Override public double getP99Millis() { return percentileMillis(0.99); }
+        @Override public double getMaxMillis() { return maxNanos.get() / 1_000_000.0; }
+
+        @Override
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            totalNanos.reset();
+            maxNanos.set(0);
+        }
+    }
+
+    public static final class Counter implements CounterMBean {
+        private final String name;
+        private final String description;
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        public void add(long amount) {
+            if (ENABLED) {
+                count.add(amount);
+            }
+        }
+
+        @Override public String getDescription() { return description; }
+        @Override public long getCount() { return count.sum(); }
+        @Override public void reset() { count.reset(); }
+    }
+
+    // Times every acquisition, contended or not, so the histogram shows the whole spread
+    private static class TimedReadWriteLock extends ReentrantReadWriteLock {
+        private static final long serialVersionUID = 1L;
+
+        private final ReadLock readLock = new TimedReadLock(this);
+        private final WriteLock writeLock = new TimedWriteLock(this);
+
+        @Override
+        public ReadLock readLock() {
+            return readLock;
+        }
+
+        @Override
+        public WriteLock writeLock() {
+            return writeLock;
+        }
+    }
+
+    private static class TimedReadLock extends ReentrantReadWriteLock.ReadLock {
+        private static final long serialVersionUID = 1L;
+
+        TimedReadLock(ReentrantReadWriteLock lock) {
+            super(lock);
+        }
+
+        @Override
+        public void lock() {
+            long start = System.nanoTime();
+            super.lock();
+            LOCK_WAIT.stop(start);
+        }
+    }
+
+    private static class TimedWriteLock extends ReentrantReadWriteLock.WriteLock {
+        private static final long serialVersionUID = 1L;
+
+        TimedWriteLock(ReentrantReadWriteLock lock) {
+            super(lock);
+        }
+
+        @Override
+        public void lock() {
+            long start = System.nanoTime();
+            super.lock();
+            LOCK_WAIT.stop(start);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.SecretKey;
+
+// Re-encrypts a whole vault under a new key on a ForkJoinPool. The list is split into
+// index ranges until they are small enough, and each leaf streams its range through
+// BulkCrypto on whichever worker picked it up, so every core runs its own cached cipher.
+public class ParallelReencryptor {
+    private static final int LEAF_SIZE = 2048;
+
+    public static List<ServiceCredential> reencrypt(List<ServiceCredential> credentials,
+                                                    SecretKey from, SecretKey to) {
+        return reencrypt(credentials, from, to, ForkJoinPool.commonPool());
+    }
+
+    // Results keep the input order. The input must not change while this runs.
+    public static List<ServiceCredential> reencrypt(List<ServiceCredential> credentials,
+                                                    SecretKey from, SecretKey to, ForkJoinPool pool) {
+        ServiceCredential[] result = new ServiceCredential[credentials.size()];
+        pool.invoke(new Range(credentials, from, to, result, 0, result.length));
+        return new ArrayList<>(Arrays.asList(result));
+    }
+
+    private static class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ServiceCredential> source;
+        private final SecretKey from;
+        private final SecretKey to;
+        private final ServiceCredential[] result;
+        private final int start;
+        private final int end;
+
+        Range(List<ServiceCredential> source, SecretKey from, SecretKey to,
+              ServiceCredential[] result, int start, int end) {
+            this.source = source;
+            this.from = from;
+            this.to = to;
+            this.result = result;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= LEAF_SIZE) {
+                int[] next = {start};
+                BulkCrypto.reencrypt(source.subList(start, end), from, to,
+                        credential -> result[next[0]++] = credential);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new Range(source, from, to, result, start, middle),
+                    new Range(source, from, to, result, middle, end));
+        }
+    }
+}
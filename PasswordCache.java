@@ -0,0 +1,197 @@
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Decrypted passwords of one session, keyed by credential id, so revealing the same
+// credential again skips the vault lock and the decryption. Bounded both ways: at most
+// maxEntries passwords, least recently used evicted first, and none older than the TTL.
+// Values are off-heap and wiped as soon as they leave the cache, whether evicted, expired,
+// removed or cleared at logout. Expired entries are also swept in the background, so a
+// password does not outlive its TTL in an idle session; an empty cache schedules nothing.
+// A shutdown hook wipes whatever is still cached when the JVM exits without logging out.
+//
+// Off by default; a capacity of zero disables it. The master password is still checked
+// before a cached value is handed out.
+public class PasswordCache {
+    private static final ScheduledThreadPoolExecutor SWEEPER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "password-cache-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Enabled caches not yet collected, for the shutdown hook
+    private static final Set<PasswordCache> LIVE = Collections.newSetFromMap(new WeakHashMap<>());
+
+    static {
+        SWEEPER.setRemoveOnCancelPolicy(true);
+        Runtime.getRuntime().addShutdownHook(new Thread(PasswordCache::clearAll, "password-cache-wipe"));
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<Long, CachedPassword> entries;
+    // Pending sweep for the earliest expiry, or null while the cache is empty
+    private ScheduledFuture<?> sweep;
+    // Bumped by clear(), so a background put started before a logout is dropped
+    private long generation;
+
+    // A cache of at most maxEntries passwords kept for up to ttl each
+    public PasswordCache(int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries < 0 || ttl < 0) {
+            throw new IllegalArgumentException("Cache size and TTL must not be negative");
+        }
+        this.maxEntries = ttl == 0 ? 0 : maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        // Access order, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<Long, CachedPassword>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedPassword> eldest) {
+                if (size() <= PasswordCache.this.maxEntries) {
+                    return false;
+                }
+                eldest.getValue().password.close();
+                Metrics.PASSWORD_CACHE_EVICTIONS.add(1);
+                return true;
+            }
+        };
+        if (isEnabled()) {
+            synchronized (LIVE) {
+                LIVE.add(this);
+            }
+        }
+    }
+
+    private static void clearAll() {
+        List<PasswordCache> caches;
+        synchronized (LIVE) {
+            caches = new ArrayList<>(LIVE);
+        }
+        for (PasswordCache cache : caches) {
+            cache.clear();
+        }
+    }
+
+    // The cache configured by anticloud.passwordCacheSize (0, off, by default) and
+    // anticloud.passwordCacheTtlSeconds (300 by default)
+    public static PasswordCache fromSystemProperties() {
+        return new PasswordCache(Integer.getInteger("anticloud.passwordCacheSize", 0),
+                Long.getLong("anticloud.passwordCacheTtlSeconds", 300), TimeUnit.SECONDS);
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    // A copy of the cached password for the caller to close, or null on a miss
+    public synchronized SecretBuffer get(long id) {
+        if (!isEnabled()) {
+            return null;
+        }
+        CachedPassword entry = entries.get(id);
+        if (entry != null && entry.isExpired()) {
+            entries.remove(id);
+            entry.password.close();
+            entry = null;
+        }
+        if (entry == null) {
+            Metrics.PASSWORD_CACHE_MISSES.add(1);
+            return null;
+        }
+        Metrics.PASSWORD_CACHE_HITS.add(1);
+        return entry.password.copy();
+    }
+
+    // Keep a copy of a decrypted password; the caller still owns the one passed in
+    public synchronized void put(long id, SecretBuffer password) {
+        put(id, password, generation);
+    }
+
+    // Like put, but only if the cache has not been cleared since generation() returned
+    // expectedGeneration; returns whether the cache is still in that generation
+    public synchronized boolean put(long id, SecretBuffer password, long expectedGeneration) {
+        if (expectedGeneration != generation) {
+            return false;
+        }
+        if (!isEnabled()) {
+            return true;
+        }
+        CachedPassword previous = entries.put(id,
+                new CachedPassword(password.copy(), System.nanoTime() + ttlNanos));
+        if (previous != null) {
+            previous.password.close();
+        }
+        if (sweep == null) {
+            sweep = SWEEPER.schedule(this::sweep, ttlNanos, TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized boolean contains(long id) {
+        CachedPassword entry = entries.get(id);
+        return entry != null && !entry.isExpired();
+    }
+
+    // Drop one credential's password, e.g. when the credential is removed
+    public synchronized void invalidate(long id) {
+        CachedPassword entry = entries.remove(id);
+        if (entry != null) {
+            entry.password.close();
+        }
+    }
+
+    // Wipe every cached password
+    public synchronized void clear() {
+        for (CachedPassword entry : entries.values()) {
+            entry.password.close();
+        }
+        entries.clear();
+        generation++;
+        if (sweep != null) {
+            sweep.cancel(false);
+            sweep = null;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Wipe expired entries and come back when the next one expires
+    private synchronized void sweep() {
+        sweep = null;
+        long now = System.nanoTime();
+        long nextExpiry = Long.MAX_VALUE;
+        Iterator<CachedPassword> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            CachedPassword entry = iterator.next();
+            if (entry.isExpired()) {
+                entry.password.close();
+                iterator.remove();
+            } else {
+                nextExpiry = Math.min(nextExpiry, entry.expiresAt - now);
+            }
+        }
+        if (!entries.isEmpty()) {
+            sweep = SWEEPER.schedule(this::sweep, nextExpiry, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static class CachedPassword {
+        final SecretBuffer password;
+        final long expiresAt;
+
+        CachedPassword(SecretBuffer password, long expiresAt) {
+            this.password = password;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - expiresAt >= 0;
+        }
+    }
+}
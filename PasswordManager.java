@@ -1,32 +1,63 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import javax.crypto.SecretKey;
 
+// One user session. The vault it works on lives in a VaultStore and is shared with every
+// other session of the same account in this JVM; reads hold the vault's read lock and
+// changes its write lock. A session itself is meant to be used by one thread at a time.
 public class PasswordManager {
-    private Map<String, User> users;
-    private User currentUser;
-    private List<ServiceCredential> currentUserCredentials;
-    private SecretKey currentUserKey;
+    private final VaultStore store;
+    private UserVault vault;
+    // Key generation of the vault when this session last verified the master password
+    private int verifiedKeyGeneration;
+    private final SessionVerifier sessionVerifier = new SessionVerifier();
+    // Recently revealed passwords; off unless configured
+    private PasswordCache passwordCache = PasswordCache.fromSystemProperties();
+    // Most revealed passwords decrypted into the cache after login; 0 turns prefetching
+    // and the tracking of reveals off
+    private int prefetchCount = Integer.getInteger("anticloud.prefetchCount", 0);
 
     public PasswordManager() {
-        this.users = FileManager.loadUsers();
-        this.currentUserCredentials = new ArrayList<>();
+        this(VaultStore.shared());
     }
 
-    // Register a new user
+    public PasswordManager(VaultStore store) {
+        this.store = store;
+        // Accounts are read one at a time at login, so only a legacy users.dat is touched here
+        FileManager.migrateUsersFile();
+    }
+
+    // Register a new user. The password methods take char[] so callers can wipe the password
+    // after use; the String overloads are for callers that only ever had a String.
     public RegistrationResult registerUser(String username, String password) {
+        char[] chars = SecretBuffer.chars(password);
+        try {
+            return registerUser(username, chars);
+        } finally {
+            SecretBuffer.wipe(chars);
+        }
+    }
+
+    public RegistrationResult registerUser(String username, char[] password) {
         if (username == null || username.trim().isEmpty()) {
             return RegistrationResult.EMPTY_USERNAME;
         }
-        if (password == null || password.length() < 6) {
+        if (password == null || password.length < 6) {
             return RegistrationResult.WEAK_PASSWORD;
         }
-        if (users.containsKey(username)) {
+        // Checked before hashing so a taken name does not cost a KDF run
+        if (FileManager.userExists(username)) {
             return RegistrationResult.USER_EXISTS;
         }
 
         User newUser = new User(username, password);
-        users.put(username, newUser);
-        FileManager.saveUsers(users);
+        // Another registration may have claimed the name meanwhile
+        if (!FileManager.createUser(newUser)) {
+            return RegistrationResult.USER_EXISTS;
+        }
         return RegistrationResult.SUCCESS;
     }
 
@@ -37,135 +68,639 @@ public class PasswordManager {
 
     // Login user
     public LoginResult login(String username, String password) {
+        char[] chars = SecretBuffer.chars(password);
+        try {
+            return login(username, chars);
+        } finally {
+            SecretBuffer.wipe(chars);
+        }
+    }
+
+    public LoginResult login(String username, char[] password) {
+        long started = Metrics.start();
+        LoginResult result = attemptLogin(username, password);
+        Metrics.LOGIN.stop(started);
+        return result;
+    }
+
+    private LoginResult attemptLogin(String username, char[] password) {
         if (username == null || username.trim().isEmpty()) {
             return LoginResult.EMPTY_CREDENTIALS;
         }
-        if (password == null || password.isEmpty()) {
+        if (password == null || password.length == 0) {
             return LoginResult.EMPTY_CREDENTIALS;
         }
 
-        User user = users.get(username);
+        User user = FileManager.loadUser(username);
         if (user == null) {
             return LoginResult.USER_NOT_FOUND;
         }
-        if (!user.authenticate(password)) {
+        // One KDF run both authenticates and yields the encryption key
+        CryptoUtil.KeyMaterial keys = user.unlock(password);
+        if (keys == null) {
             return LoginResult.INVALID_PASSWORD;
         }
 
-        currentUser = user;
-        currentUserKey = CryptoUtil.deriveKey(password, user.getSalt());
-        currentUserCredentials = FileManager.loadUserCredentials(username);
+        logout();
+        UserVault attached;
+        try {
+            try {
+                attached = store.attach(user, keys);
+            } catch (FileManager.CorruptVaultException e) {
+                System.err.println(e.getMessage() + ": " + e.getCause());
+                return LoginResult.VAULT_CORRUPTED;
+            }
+            if (attached == null) {
+                return LoginResult.VAULT_IN_USE;
+            }
+            boolean unlocked;
+            attached.getLock().readLock().lock();
+            try {
+                unlocked = attached.isUnlockedBy(keys);
+                verifiedKeyGeneration = attached.getKeyGeneration();
+            } finally {
+                attached.getLock().readLock().unlock();
+            }
+            if (!unlocked) {
+                // The password was changed by another session after the record was read
+                store.detach(attached);
+                return LoginResult.INVALID_PASSWORD;
+            }
+        } finally {
+            // The vault holds its own copy of the key
+            keys.destroy();
+        }
+        vault = attached;
+        sessionVerifier.establish(password);
+        PasswordPrefetcher.prefetch(vault, passwordCache, prefetchCount);
         return LoginResult.SUCCESS;
     }
 
     // Enum for login results
     public enum LoginResult {
-        SUCCESS, USER_NOT_FOUND, INVALID_PASSWORD, EMPTY_CREDENTIALS
+        SUCCESS, USER_NOT_FOUND, INVALID_PASSWORD, EMPTY_CREDENTIALS, VAULT_IN_USE, VAULT_CORRUPTED
     }
 
     // Add new service credential
     public CredentialResult addCredential(String serviceName, String username, String password) {
-        if (currentUser == null) {
+        char[] chars = SecretBuffer.chars(password);
+        try {
+            return addCredential(serviceName, username, chars);
+        } finally {
+            SecretBuffer.wipe(chars);
+        }
+    }
+
+    public CredentialResult addCredential(String serviceName, String username, char[] password) {
+        if (vault == null) {
             return CredentialResult.NOT_LOGGED_IN;
         }
 
         if (serviceName == null || serviceName.trim().isEmpty() ||
                 username == null || username.trim().isEmpty() ||
-                password == null || password.isEmpty()) {
+                password == null || password.length == 0) {
             return CredentialResult.EMPTY_FIELDS;
         }
 
+        vault.getLock().writeLock().lock();
         try {
-            CryptoUtil.EncryptedData encryptedPassword = CryptoUtil.encrypt(password, currentUserKey);
-            ServiceCredential credential = new ServiceCredential(serviceName, username, encryptedPassword);
+            CryptoUtil.EncryptedData encryptedPassword = CryptoUtil.encrypt(password, vault.getKey(),
+                    CryptoUtil.credentialAad(serviceName, username));
+            ServiceCredential credential = vault.getJournal().recordAdd(
+                    new ServiceCredential(serviceName, username, encryptedPassword));
 
-            currentUserCredentials.add(credential);
-            FileManager.saveUserCredentials(currentUser.getUsername(), currentUserCredentials);
-            return CredentialResult.SUCCESS;
+            vault.getCredentials().add(credential);
+            vault.getJournal().compactIfNeeded(vault.getCredentials().asList());
         } catch (Exception e) {
-            return CredentialResult.ENCRYPTION_ERROR;
+            return failure();
+        } finally {
+            vault.getLock().writeLock().unlock();
+        }
+        return persist();
+    }
+
+    // Make the changes just recorded durable, unless the store writes them behind. Called
+    // outside the vault lock, so concurrent sessions share one fsync. A change that was not
+    // synced stays in memory and may be in the log, so it is reported as IO_ERROR rather than
+    // as failed; the journal takes no more changes until the vault is reopened.
+    private CredentialResult persist() {
+        if (!store.isWriteBehind()) {
+            try {
+                vault.getJournal().sync();
+            } catch (RuntimeException e) {
+                System.err.println("Error saving credentials: " + e.getMessage());
+                return CredentialResult.IO_ERROR;
+            }
+        }
+        return CredentialResult.SUCCESS;
+    }
+
+    // Result for a change that could not be recorded: once the journal has failed the vault
+    // no longer matches the disk, which is not an encryption problem
+    private CredentialResult failure() {
+        return vault.getJournal().isFailed() ? CredentialResult.IO_ERROR : CredentialResult.ENCRYPTION_ERROR;
+    }
+
+    // Import plaintext credentials from CSV or JSON. Entries are read and encrypted a batch at a
+    // time, and every batch is appended to the journal with one flush, so what was imported
+    // before a parse error or crash stays imported. Other sessions can get in between batches.
+    public CredentialTransfer.Report importCredentials(Reader in, CredentialTransfer.Format format) {
+        if (vault == null) {
+            return new CredentialTransfer.Report(CredentialResult.NOT_LOGGED_IN, 0, 0, 0, 0, null);
+        }
+
+        long start = System.nanoTime();
+        int imported = 0;
+        int skipped = 0;
+        int batches = 0;
+        String error = null;
+        List<CredentialTransfer.Entry> batch = new ArrayList<>(CredentialTransfer.BATCH_SIZE);
+        CredentialTransfer.EntryReader reader = null;
+        try {
+            reader = CredentialTransfer.reader(in, format);
+            boolean more = true;
+            while (more) {
+                CredentialTransfer.Entry entry = reader.next();
+                more = entry != null;
+                if (more) {
+                    // Stops the import like a malformed entry, keeping what was read before it
+                    CredentialTransfer.checkFieldLengths(entry, imported + skipped + batch.size() + 1);
+                }
+                if (more && entry.isComplete()) {
+                    batch.add(entry);
+                } else if (more) {
+                    skipped++;
+                }
+                if (batch.size() == CredentialTransfer.BATCH_SIZE || (!more && !batch.isEmpty())) {
+                    CredentialResult result = commitImportBatch(batch);
+                    if (result != CredentialResult.SUCCESS) {
+                        // The batch is in memory; whether it is on disk is unknown
+                        return new CredentialTransfer.Report(result, imported + batch.size(), skipped,
+                                batches + 1, System.nanoTime() - start, "Could not save the imported credentials");
+                    }
+                    imported += batch.size();
+                    batches++;
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            error = reader != null ? e.getMessage() : "Cannot read input: " + e.getMessage();
+            // Entries read before the error are kept like those of earlier batches
+            if (!batch.isEmpty()) {
+                try {
+                    CredentialResult result = commitImportBatch(batch);
+                    imported += batch.size();
+                    batches++;
+                    if (result != CredentialResult.SUCCESS) {
+                        return new CredentialTransfer.Report(result, imported, skipped, batches,
+                                System.nanoTime() - start, "Could not save the imported credentials");
+                    }
+                } catch (RuntimeException commitError) {
+                    return new CredentialTransfer.Report(failure(), imported, skipped,
+                            batches, System.nanoTime() - start, commitError.getMessage());
+                }
+            }
+        } catch (RuntimeException e) {
+            return new CredentialTransfer.Report(failure(), imported, skipped, batches,
+                    System.nanoTime() - start, e.getMessage());
+        }
+        return new CredentialTransfer.Report(CredentialResult.SUCCESS, imported, skipped, batches,
+                System.nanoTime() - start, error);
+    }
+
+    // Throws if the batch could not be recorded, leaving the vault as it was
+    private CredentialResult commitImportBatch(List<CredentialTransfer.Entry> batch) {
+        vault.getLock().writeLock().lock();
+        try {
+            ServiceCredential[] added = vault.getJournal().recordAddAll(
+                    CredentialTransfer.encrypt(batch, vault.getKey()));
+            vault.getCredentials().addAll(added);
+            vault.getJournal().compactIfNeeded(vault.getCredentials().asList());
+        } finally {
+            vault.getLock().writeLock().unlock();
         }
+        return persist();
+    }
+
+    // Export every credential with its password in plaintext, decrypting a batch at a time.
+    // The master password is checked first, as for revealing a single password.
+    public CredentialTransfer.Report exportCredentials(Writer out, CredentialTransfer.Format format,
+                                                       String masterPassword) {
+        char[] chars = SecretBuffer.chars(masterPassword);
+        try {
+            return exportCredentials(out, format, chars);
+        } finally {
+            SecretBuffer.wipe(chars);
+        }
+    }
+
+    public CredentialTransfer.Report exportCredentials(Writer out, CredentialTransfer.Format format,
+                                                       char[] masterPassword) {
+        if (vault == null) {
+            return new CredentialTransfer.Report(CredentialResult.NOT_LOGGED_IN, 0, 0, 0, 0, null);
+        }
+        if (!verifyMasterPassword(masterPassword)) {
+            return new CredentialTransfer.Report(CredentialResult.INVALID_MASTER_PASSWORD, 0, 0, 0, 0, null);
+        }
+
+        long start = System.nanoTime();
+        int exported = 0;
+        int batches = 0;
+        try (CredentialTransfer.EntryWriter writer = CredentialTransfer.writer(out, format)) {
+            long fromId = Long.MIN_VALUE;
+            while (true) {
+                List<ServiceCredential> batch;
+                CredentialTransfer.Entry[] entries;
+                vault.getLock().readLock().lock();
+                try {
+                    batch = vault.getCredentials().page(fromId, CredentialTransfer.BATCH_SIZE);
+                    entries = CredentialTransfer.decrypt(batch, vault.getKey());
+                } finally {
+                    vault.getLock().readLock().unlock();
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                // Written outside the lock, so a slow destination does not hold up other sessions
+                for (CredentialTransfer.Entry entry : entries) {
+                    writer.write(entry);
+                }
+                fromId = batch.get(batch.size() - 1).getId() + 1;
+                exported += batch.size();
+                batches++;
+            }
+        } catch (IOException e) {
+            return new CredentialTransfer.Report(CredentialResult.SUCCESS, exported, 0, batches,
+                    System.nanoTime() - start, e.getMessage());
+        } catch (RuntimeException e) {
+            return new CredentialTransfer.Report(CredentialResult.ENCRYPTION_ERROR, exported, 0, batches,
+                    System.nanoTime() - start, e.getMessage());
+        }
+        return new CredentialTransfer.Report(CredentialResult.SUCCESS, exported, 0, batches,
+                System.nanoTime() - start, null);
     }
 
     // Enum for credential operation results
     public enum CredentialResult {
-        SUCCESS, NOT_LOGGED_IN, EMPTY_FIELDS, ENCRYPTION_ERROR, INVALID_MASTER_PASSWORD
+        SUCCESS, NOT_LOGGED_IN, EMPTY_FIELDS, ENCRYPTION_ERROR, INVALID_MASTER_PASSWORD, WEAK_PASSWORD,
+        NOT_FOUND, IO_ERROR
+    }
+
+    // Change the master password, re-encrypting the whole vault under the new key in parallel.
+    // The new vault is staged beside the live one, the account record is switched, and only
+    // then is the staged file swapped in; login settles a staged file left by a crash.
+    // Other sessions of the account wait on the vault's write lock meanwhile.
+    public MasterPasswordChangeResult changeMasterPassword(String currentPassword, String newPassword) {
+        char[] current = SecretBuffer.chars(currentPassword);
+        char[] next = SecretBuffer.chars(newPassword);
+        try {
+            return changeMasterPassword(current, next);
+        } finally {
+            SecretBuffer.wipe(current);
+            SecretBuffer.wipe(next);
+        }
+    }
+
+    public MasterPasswordChangeResult changeMasterPassword(char[] currentPassword, char[] newPassword) {
+        if (vault == null) {
+            return new MasterPasswordChangeResult(CredentialResult.NOT_LOGGED_IN, 0, 0);
+        }
+        if (newPassword == null || newPassword.length < 6) {
+            return new MasterPasswordChangeResult(CredentialResult.WEAK_PASSWORD, 0, 0);
+        }
+
+        // Both KDF runs happen before taking the lock
+        byte[] newSalt = CryptoUtil.generateSalt();
+        KdfParameters newKdfParameters = KdfCalibrator.registrationParameters();
+        CryptoUtil.KeyMaterial newKeys = CryptoUtil.deriveKeyMaterial(newPassword, newSalt, newKdfParameters);
+        SecretKey newKey = newKeys.getEncryptionKey();
+        byte[] newKeyCheck = CryptoUtil.keyCheck(newKey);
+        User user = getCurrentUser();
+        CryptoUtil.KeyMaterial currentKeys = currentPassword == null ? null : user.unlock(currentPassword);
+
+        vault.getLock().writeLock().lock();
+        try {
+            // Checked under the lock in case another session changed the password meanwhile
+            if (currentKeys == null || vault.getUser() != user || !vault.isUnlockedBy(currentKeys)) {
+                return new MasterPasswordChangeResult(CredentialResult.INVALID_MASTER_PASSWORD, 0, 0);
+            }
+
+            long start = System.nanoTime();
+            List<ServiceCredential> reencrypted;
+            try {
+                reencrypted = ParallelReencryptor.reencrypt(vault.getCredentials().asList(), vault.getKey(), newKey);
+                vault.getJournal().stageRewrite(reencrypted, newKeyCheck);
+            } catch (RuntimeException e) {
+                FileManager.discardStagedCredentials(user.getUsername());
+                return new MasterPasswordChangeResult(failure(), 0, 0);
+            }
+
+            User rotated = user.rekey(newSalt, newKdfParameters, newKeys);
+            FileManager.saveUser(rotated);
+            vault.getJournal().commitStagedRewrite(newKeyCheck);
+            long elapsed = System.nanoTime() - start;
+
+            vault.rekey(rotated, newKey, reencrypted);
+            verifiedKeyGeneration = vault.getKeyGeneration();
+            sessionVerifier.establish(newPassword);
+            return new MasterPasswordChangeResult(CredentialResult.SUCCESS, reencrypted.size(), elapsed);
+        } finally {
+            vault.getLock().writeLock().unlock();
+            // The vault has copied the new key if it switched to it
+            newKeys.destroy();
+            if (currentKeys != null) {
+                currentKeys.destroy();
+            }
+        }
+    }
+
+    // Result class for a master password change, with re-encryption throughput
+    public static class MasterPasswordChangeResult {
+        private final CredentialResult result;
+        private final int entries;
+        private final long elapsedNanos;
+
+        public MasterPasswordChangeResult(CredentialResult result, int entries, long elapsedNanos) {
+            this.result = result;
+            this.entries = entries;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public CredentialResult getResult() { return result; }
+        public boolean isSuccess() { return result == CredentialResult.SUCCESS; }
+        public int getEntries() { return entries; }
+        public long getElapsedMillis() { return elapsedNanos / 1_000_000; }
+        public double getEntriesPerSecond() {
+            return elapsedNanos == 0 ? 0 : entries * 1_000_000_000.0 / elapsedNanos;
+        }
     }
 
-    // Logout current user
+    // Logout current user; the vault is closed once no other session has it open
     public void logout() {
-        currentUser = null;
-        currentUserKey = null;
-        if (currentUserCredentials != null) {
-            currentUserCredentials.clear();
+        sessionVerifier.invalidate();
+        passwordCache.clear();
+        if (vault == null) {
+            return;
         }
-        // Clear sensitive data from memory
-        System.gc();
+        UserVault detached = vault;
+        vault = null;
+        // Written-behind changes of this session are on disk once it has logged out, even
+        // if other sessions keep the vault open
+        try {
+            detached.getJournal().sync();
+        } catch (RuntimeException e) {
+            System.err.println("Error saving credentials: " + e.getMessage());
+        }
+        // The vault wipes its key once the last session has detached
+        store.detach(detached);
     }
 
     // Get all credentials for current user
     public List<ServiceCredential> getCredentials() {
-        if (currentUser == null) {
+        if (vault == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(vault.getCredentials().view());
+    }
+
+    // Read-only live view of the current user's credentials in vault order, without copying.
+    // Safe to read from another thread, such as the EDT, while this manager is in use.
+    public List<ServiceCredential> getCredentialView() {
+        if (vault == null) {
+            return Collections.emptyList();
+        }
+        return vault.getCredentials().view();
+    }
+
+    // A copy of up to limit credentials from a position in vault order
+    public List<ServiceCredential> getCredentialRange(int offset, int limit) {
+        if (vault == null) {
             return new ArrayList<>();
         }
-        return new ArrayList<>(currentUserCredentials);
+        return vault.getCredentials().range(offset, limit);
+    }
+
+    // The credential with the given stable id, or null
+    public ServiceCredential findById(long id) {
+        if (vault == null) {
+            return null;
+        }
+        return vault.getCredentials().findById(id);
+    }
+
+    // Credentials for a service name, ignoring case
+    public List<ServiceCredential> findByService(String serviceName) {
+        if (vault == null) {
+            return new ArrayList<>();
+        }
+        return vault.getCredentials().findByService(serviceName);
+    }
+
+    // Credentials stored under a username, ignoring case
+    public List<ServiceCredential> findByUsername(String username) {
+        if (vault == null) {
+            return new ArrayList<>();
+        }
+        return vault.getCredentials().findByUsername(username);
+    }
+
+    // Credentials whose service name starts with a prefix, ordered by service name
+    public List<ServiceCredential> findByServicePrefix(String prefix) {
+        if (vault == null) {
+            return new ArrayList<>();
+        }
+        return vault.getCredentials().findByServicePrefix(prefix);
     }
 
     // Decrypt and get password for a specific credential
     public PasswordRetrievalResult getDecryptedPassword(ServiceCredential credential, String masterPassword) {
-        if (currentUser == null) {
+        char[] chars = SecretBuffer.chars(masterPassword);
+        try {
+            return getDecryptedPassword(credential, chars);
+        } finally {
+            SecretBuffer.wipe(chars);
+        }
+    }
+
+    // The result holds the password off-heap; close it once the password has been used
+    public PasswordRetrievalResult getDecryptedPassword(ServiceCredential credential, char[] masterPassword) {
+        if (vault == null) {
             return new PasswordRetrievalResult(CredentialResult.NOT_LOGGED_IN, null);
         }
 
-        // Verify master password
-        if (!currentUser.authenticate(masterPassword)) {
+        if (!verifyMasterPassword(masterPassword)) {
             return new PasswordRetrievalResult(CredentialResult.INVALID_MASTER_PASSWORD, null);
         }
 
+        if (prefetchCount > 0) {
+            vault.getAccessStats().recordAccess(credential.getId(), System.currentTimeMillis());
+        }
+        SecretBuffer cached = passwordCache.get(credential.getId());
+        if (cached != null) {
+            return new PasswordRetrievalResult(CredentialResult.SUCCESS, cached);
+        }
+        vault.getLock().readLock().lock();
         try {
-            String password = CryptoUtil.decrypt(credential.getEncryptedPassword(), currentUserKey);
+            SecretBuffer password = CryptoUtil.decryptSecret(credential.getEncryptedPassword(), vault.getKey(),
+                    credential.getAssociatedData());
+            passwordCache.put(credential.getId(), password);
             return new PasswordRetrievalResult(CredentialResult.SUCCESS, password);
         } catch (Exception e) {
             return new PasswordRetrievalResult(CredentialResult.ENCRYPTION_ERROR, null);
+        } finally {
+            vault.getLock().readLock().unlock();
         }
     }
 
-    // Result class for password retrieval
-    public static class PasswordRetrievalResult {
+    // Verify the master password, skipping the full KDF while the session verifier is trusted
+    // and no other session has changed the password since
+    private boolean verifyMasterPassword(char[] masterPassword) {
+        if (masterPassword == null) {
+            return false;
+        }
+        User user;
+        vault.getLock().readLock().lock();
+        try {
+            user = vault.getUser();
+            if (verifiedKeyGeneration != vault.getKeyGeneration()) {
+                sessionVerifier.invalidate();
+                verifiedKeyGeneration = vault.getKeyGeneration();
+            }
+        } finally {
+            vault.getLock().readLock().unlock();
+        }
+        if (sessionVerifier.isTrusted()) {
+            return sessionVerifier.verify(masterPassword);
+        }
+        if (!user.authenticate(masterPassword)) {
+            return false;
+        }
+        sessionVerifier.establish(masterPassword);
+        return true;
+    }
+
+    // How long a verified master password is trusted before the full KDF runs again
+    public void setReverificationTimeout(long timeout, TimeUnit unit) {
+        sessionVerifier.setTimeout(timeout, unit);
+    }
+
+    // Keep up to maxEntries revealed passwords for up to ttl each, so revealing one again
+    // skips decryption; zero for either turns the cache off. Replaces the cache, wiping it.
+    public void setPasswordCache(int maxEntries, long ttl, TimeUnit unit) {
+        PasswordCache replacement = new PasswordCache(maxEntries, ttl, unit);
+        passwordCache.clear();
+        passwordCache = replacement;
+    }
+
+    // Decrypt the count most often and recently revealed passwords into the cache after each
+    // login, and keep track of reveals for that; 0 turns both off. Needs the cache enabled.
+    public void setPrefetchCount(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Prefetch count must not be negative");
+        }
+        this.prefetchCount = count;
+    }
+
+    // Result class for password retrieval; closing it wipes the password
+    public static class PasswordRetrievalResult implements AutoCloseable {
         private final CredentialResult result;
-        private final String password;
+        private final SecretBuffer password;
 
-        public PasswordRetrievalResult(CredentialResult result, String password) {
+        public PasswordRetrievalResult(CredentialResult result, SecretBuffer password) {
             this.result = result;
             this.password = password;
         }
 
         public CredentialResult getResult() { return result; }
-        public String getPassword() { return password; }
         public boolean isSuccess() { return result == CredentialResult.SUCCESS; }
+
+        // A fresh copy of the password for the caller to wipe, or null
+        public char[] getPasswordChars() {
+            return password == null ? null : password.decodeChars();
+        }
+
+        // The password as a String, for APIs that need one, or null. A String cannot be
+        // wiped, so prefer getPasswordChars where the caller can take a char[].
+        public String getPassword() {
+            char[] chars = getPasswordChars();
+            try {
+                return chars == null ? null : new String(chars);
+            } finally {
+                SecretBuffer.wipe(chars);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (password != null) {
+                password.close();
+            }
+        }
     }
 
     // Check if user is logged in
     public boolean isLoggedIn() {
-        return currentUser != null;
+        return vault != null;
     }
 
     // Get current user
     public User getCurrentUser() {
-        return currentUser;
+        if (vault == null) {
+            return null;
+        }
+        vault.getLock().readLock().lock();
+        try {
+            return vault.getUser();
+        } finally {
+            vault.getLock().readLock().unlock();
+        }
     }
 
     // Remove a credential
-    public boolean removeCredential(int index) {
-        if (currentUser == null) {
-            return false;
+    public CredentialResult removeCredential(int index) {
+        if (vault == null) {
+            return CredentialResult.NOT_LOGGED_IN;
         }
 
-        if (index >= 0 && index < currentUserCredentials.size()) {
-            currentUserCredentials.remove(index);
-            FileManager.saveUserCredentials(currentUser.getUsername(), currentUserCredentials);
-            return true;
+        ServiceCredential credential;
+        try {
+            credential = vault.getCredentials().get(index);
+        } catch (IndexOutOfBoundsException e) {
+            return CredentialResult.NOT_FOUND;
+        }
+        return removeById(credential.getId());
+    }
+
+    // Search service names and usernames, best matches first; tolerates typos
+    public List<ServiceCredential> searchCredentials(String query, int limit) {
+        if (vault == null) {
+            return new ArrayList<>();
+        }
+        return vault.getCredentials().search(query, limit);
+    }
+
+    // Remove a credential by its stable id
+    public CredentialResult removeById(long id) {
+        if (vault == null) {
+            return CredentialResult.NOT_LOGGED_IN;
+        }
+
+        vault.getLock().writeLock().lock();
+        try {
+            // Recorded first, so a journal that fails leaves the credential in place
+            if (vault.getCredentials().findById(id) == null) {
+                return CredentialResult.NOT_FOUND;
+            }
+            vault.getJournal().recordRemove(id);
+            vault.getCredentials().removeById(id);
+            passwordCache.invalidate(id);
+            vault.getAccessStats().remove(id);
+            vault.getJournal().compactIfNeeded(vault.getCredentials().asList());
+        } catch (RuntimeException e) {
+            return failure();
+        } finally {
+            vault.getLock().writeLock().unlock();
         }
-        return false;
+        return persist();
     }
 }
\ No newline at end of file
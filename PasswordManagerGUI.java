@@ -1,13 +1,28 @@
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 public class PasswordManagerGUI extends JFrame {
+    // Most search results shown in the table at once
+    private static final int SEARCH_RESULT_LIMIT = 500;
+    // Operations quicker than this finish without flashing a progress dialog
+    private static final int PROGRESS_DELAY_MILLIS = 200;
+
     private final PasswordManager passwordManager;
+    // Runs every call that derives keys, encrypts or touches the vault off the EDT
+    private final AsyncPasswordManager asyncManager;
     private JPanel currentPanel;
     
     // UI Components
@@ -17,23 +32,31 @@ public class PasswordManagerGUI extends JFrame {
     private JLabel statusLabel;
     
     // Main dashboard components
+    private JTextField searchField;
     private JTable credentialsTable;
-    private DefaultTableModel tableModel;
+    private CredentialTableModel tableModel;
+    // Whether the table holds a copy of search results rather than the live vault
+    private boolean showingSearchResults;
+    // Bumped per search so results of a query the user has typed past are dropped
+    private int searchGeneration;
+    private CompletableFuture<?> pendingSearch;
     private JButton addCredentialBtn;
     private JButton viewPasswordBtn;
     private JButton removeCredentialBtn;
+    private JButton changeMasterPasswordBtn;
     private JButton logoutBtn;
 
     public PasswordManagerGUI() {
         this.passwordManager = new PasswordManager();
+        this.asyncManager = new AsyncPasswordManager(passwordManager);
         initializeGUI();
         showLoginPanel();
     }
 
     private void initializeGUI() {
         setTitle("Secure Password Manager");
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(600, 500);
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        setSize(720, 500);
         setLocationRelativeTo(null);
         setResizable(false);
 
@@ -49,9 +72,9 @@ public class PasswordManagerGUI extends JFrame {
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                if (passwordManager.isLoggedIn()) {
-                    passwordManager.logout();
-                }
+                // Let queued vault writes finish, then log out on the worker thread
+                asyncManager.logout();
+                asyncManager.shutdown(30, TimeUnit.SECONDS);
                 System.exit(0);
             }
         });
@@ -211,17 +234,29 @@ public class PasswordManagerGUI extends JFrame {
         JLabel titleLabel = new JLabel("Password Manager - " + username, JLabel.CENTER);
         titleLabel.setFont(new Font("Arial", Font.BOLD, 20));
         titleLabel.setBorder(BorderFactory.createEmptyBorder(0, 0, 20, 0));
-        panel.add(titleLabel, BorderLayout.NORTH);
 
-        // Center panel with table
-        String[] columnNames = {"Service", "Username"};
-        tableModel = new DefaultTableModel(columnNames, 0) {
+        // Search field, filtering the table as the user types
+        searchField = new JTextField();
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
             @Override
-            public boolean isCellEditable(int row, int column) {
-                return false; // Make table read-only
-            }
-        };
-        
+            public void insertUpdate(DocumentEvent e) { refreshCredentialsTable(); }
+            @Override
+            public void removeUpdate(DocumentEvent e) { refreshCredentialsTable(); }
+            @Override
+            public void changedUpdate(DocumentEvent e) { refreshCredentialsTable(); }
+        });
+        JPanel searchPanel = new JPanel(new BorderLayout(10, 0));
+        searchPanel.setBorder(BorderFactory.createEmptyBorder(0, 0, 10, 0));
+        searchPanel.add(new JLabel("Search:"), BorderLayout.WEST);
+        searchPanel.add(searchField, BorderLayout.CENTER);
+
+        JPanel headerPanel = new JPanel(new BorderLayout());
+        headerPanel.add(titleLabel, BorderLayout.NORTH);
+        headerPanel.add(searchPanel, BorderLayout.SOUTH);
+        panel.add(headerPanel, BorderLayout.NORTH);
+
+        // Center panel with table
+        tableModel = new CredentialTableModel();
         credentialsTable = new JTable(tableModel);
         credentialsTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         credentialsTable.getTableHeader().setReorderingAllowed(false);
@@ -236,16 +271,19 @@ public class PasswordManagerGUI extends JFrame {
         addCredentialBtn = new JButton("Add Credential");
         viewPasswordBtn = new JButton("View Password");
         removeCredentialBtn = new JButton("Remove Credential");
+        changeMasterPasswordBtn = new JButton("Change Master Password");
         logoutBtn = new JButton("Logout");
 
         addCredentialBtn.addActionListener(e -> showAddCredentialDialog());
         viewPasswordBtn.addActionListener(e -> showViewPasswordDialog());
         removeCredentialBtn.addActionListener(e -> handleRemoveCredential());
+        changeMasterPasswordBtn.addActionListener(e -> showChangeMasterPasswordDialog());
         logoutBtn.addActionListener(e -> handleLogout());
 
         buttonPanel.add(addCredentialBtn);
         buttonPanel.add(viewPasswordBtn);
         buttonPanel.add(removeCredentialBtn);
+        buttonPanel.add(changeMasterPasswordBtn);
         buttonPanel.add(logoutBtn);
 
         panel.add(buttonPanel, BorderLayout.SOUTH);
@@ -255,68 +293,77 @@ public class PasswordManagerGUI extends JFrame {
 
     private void handleLogin() {
         String username = usernameField.getText().trim();
-        String password = new String(passwordField.getPassword());
+        // Handed over to the async manager, which wipes it
+        char[] password = passwordField.getPassword();
 
-        PasswordManager.LoginResult result = passwordManager.login(username, password);
-        
-        switch (result) {
-            case SUCCESS:
-                showDashboard();
-                break;
-            case USER_NOT_FOUND:
-                showStatus("User not found.", true);
-                break;
-            case INVALID_PASSWORD:
-                showStatus("Invalid password.", true);
-                break;
-            case EMPTY_CREDENTIALS:
-                showStatus("Please enter username and password.", true);
-                break;
-        }
-        
         // Clear password field
         passwordField.setText("");
+
+        runInBackground("Unlocking vault...", asyncManager.login(username, password), result -> {
+            switch (result) {
+                case SUCCESS:
+                    showDashboard();
+                    break;
+                case USER_NOT_FOUND:
+                    showStatus("User not found.", true);
+                    break;
+                case INVALID_PASSWORD:
+                    showStatus("Invalid password.", true);
+                    break;
+                case EMPTY_CREDENTIALS:
+                    showStatus("Please enter username and password.", true);
+                    break;
+                case VAULT_IN_USE:
+                    showStatus("This vault is open in another program.", true);
+                    break;
+                case VAULT_CORRUPTED:
+                    showStatus("The vault file is damaged and was left untouched.", true);
+                    break;
+            }
+        });
     }
 
     private void handleRegister() {
         String username = usernameField.getText().trim();
-        String password = new String(passwordField.getPassword());
-        String confirmPassword = new String(confirmPasswordField.getPassword());
+        char[] password = passwordField.getPassword();
+        char[] confirmPassword = confirmPasswordField.getPassword();
+        boolean matches = Arrays.equals(password, confirmPassword);
+        SecretBuffer.wipe(confirmPassword);
 
-        if (!password.equals(confirmPassword)) {
+        if (!matches) {
+            SecretBuffer.wipe(password);
             showStatus("Passwords do not match.", true);
             return;
         }
 
-        PasswordManager.RegistrationResult result = passwordManager.registerUser(username, password);
-        
-        switch (result) {
-            case SUCCESS:
-                showStatus("Registration successful! You can now login.", false);
-                // Clear fields and go back to login after a delay
-                Timer timer = new Timer(2000, e -> showLoginPanel());
-                timer.setRepeats(false);
-                timer.start();
-                break;
-            case USER_EXISTS:
-                showStatus("Username already exists.", true);
-                break;
-            case EMPTY_USERNAME:
-                showStatus("Username cannot be empty.", true);
-                break;
-            case WEAK_PASSWORD:
-                showStatus("Password must be at least 6 characters long.", true);
-                break;
-        }
-        
         // Clear password fields
         passwordField.setText("");
         confirmPasswordField.setText("");
+
+        runInBackground("Creating account...", asyncManager.registerUser(username, password), result -> {
+            switch (result) {
+                case SUCCESS:
+                    showStatus("Registration successful! You can now login.", false);
+                    // Clear fields and go back to login after a delay
+                    Timer timer = new Timer(2000, e -> showLoginPanel());
+                    timer.setRepeats(false);
+                    timer.start();
+                    break;
+                case USER_EXISTS:
+                    showStatus("Username already exists.", true);
+                    break;
+                case EMPTY_USERNAME:
+                    showStatus("Username cannot be empty.", true);
+                    break;
+                case WEAK_PASSWORD:
+                    showStatus("Password must be at least 6 characters long.", true);
+                    break;
+            }
+        });
     }
 
     private void handleLogout() {
-        passwordManager.logout();
-        showLoginPanel();
+        runInBackground("Logging out...", asyncManager.logout(), ignored -> showLoginPanel());
     }
 
     private void showAddCredentialDialog() {
@@ -364,18 +411,28 @@ public class PasswordManagerGUI extends JFrame {
         saveBtn.addActionListener(e -> {
             String serviceName = serviceField.getText().trim();
             String username = userField.getText().trim();
-            String password = new String(passField.getPassword());
-
-            PasswordManager.CredentialResult result = passwordManager.addCredential(serviceName, username, password);
-            
-            if (result == PasswordManager.CredentialResult.SUCCESS) {
-                refreshCredentialsTable();
-                dialog.dispose();
-                JOptionPane.showMessageDialog(this, "Credential added successfully!");
-            } else {
-                JOptionPane.showMessageDialog(dialog, "Error: " + getCredentialResultMessage(result), 
-                    "Error", JOptionPane.ERROR_MESSAGE);
-            }
+            char[] password = passField.getPassword();
+
+            runInBackground("Saving credential...", asyncManager.addCredential(serviceName, username, password),
+                result -> {
+                    // A change that could not be saved is still in the vault this session sees
+                    if (result == PasswordManager.CredentialResult.SUCCESS
+                            || result == PasswordManager.CredentialResult.IO_ERROR) {
+                        if (showingSearchResults) {
+                            refreshCredentialsTable();
+                        } else {
+                            // The model still has the old count, which is the new row's index
+                            tableModel.rowInserted(tableModel.getRowCount());
+                        }
+                        dialog.dispose();
+                    }
+                    if (result == PasswordManager.CredentialResult.SUCCESS) {
+                        JOptionPane.showMessageDialog(this, "Credential added successfully!");
+                    } else {
+                        JOptionPane.showMessageDialog(dialog, "Error: " + getCredentialResultMessage(result),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                });
         });
 
         cancelBtn.addActionListener(e -> dialog.dispose());
@@ -396,8 +453,7 @@ public class PasswordManagerGUI extends JFrame {
             return;
         }
 
-        List<ServiceCredential> credentials = passwordManager.getCredentials();
-        ServiceCredential credential = credentials.get(selectedRow);
+        ServiceCredential credential = tableModel.getCredential(selectedRow);
 
         // Ask for master password
         JPasswordField masterPasswordField = new JPasswordField();
@@ -406,50 +462,55 @@ public class PasswordManagerGUI extends JFrame {
             "Master Password Required", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
 
         if (option == JOptionPane.OK_OPTION) {
-            String masterPassword = new String(masterPasswordField.getPassword());
-            
-            PasswordManager.PasswordRetrievalResult result = passwordManager.getDecryptedPassword(credential, masterPassword);
+            char[] masterPassword = masterPasswordField.getPassword();
             
-            if (result.isSuccess()) {
-                // Show password in a dialog
-                JDialog passwordDialog = new JDialog(this, "Password for " + credential.getServiceName(), true);
-                passwordDialog.setSize(400, 300);
-                passwordDialog.setLocationRelativeTo(this);
-
-                JPanel panel = new JPanel(new GridBagLayout());
-                panel.setBorder(new EmptyBorder(20, 20, 20, 20));
-                GridBagConstraints gbc = new GridBagConstraints();
-                gbc.insets = new Insets(10, 10, 10, 10);
-
-                gbc.gridx = 0; gbc.gridy = 0;
-                panel.add(new JLabel("Service:"), gbc);
-                gbc.gridx = 1;
-                panel.add(new JLabel(credential.getServiceName()), gbc);
-
-                gbc.gridx = 0; gbc.gridy = 1;
-                panel.add(new JLabel("Username:"), gbc);
-                gbc.gridx = 1;
-                panel.add(new JLabel(credential.getUsername()), gbc);
-
-                gbc.gridx = 0; gbc.gridy = 2;
-                panel.add(new JLabel("Password:"), gbc);
-                gbc.gridx = 1;
-                JTextField passwordDisplay = new JTextField(result.getPassword());
-                passwordDisplay.setEditable(false);
-                passwordDisplay.setBackground(Color.LIGHT_GRAY);
-                panel.add(passwordDisplay, gbc);
-
-                gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 2;
-                JButton closeBtn = new JButton("Close");
-                closeBtn.addActionListener(e -> passwordDialog.dispose());
-                panel.add(closeBtn, gbc);
-
-                passwordDialog.add(panel);
-                passwordDialog.setVisible(true);
-            } else {
-                JOptionPane.showMessageDialog(this, getCredentialResultMessage(result.getResult()), 
-                    "Error", JOptionPane.ERROR_MESSAGE);
-            }
+            runInBackground("Decrypting...", asyncManager.getDecryptedPassword(credential, masterPassword),
+                result -> showPassword(credential, result));
+        }
+    }
+
+    private void showPassword(ServiceCredential credential, PasswordManager.PasswordRetrievalResult result) {
+        if (result.isSuccess()) {
+            // Show password in a dialog
+            JDialog passwordDialog = new JDialog(this, "Password for " + credential.getServiceName(), true);
+            passwordDialog.setSize(400, 300);
+            passwordDialog.setLocationRelativeTo(this);
+
+            JPanel panel = new JPanel(new GridBagLayout());
+            panel.setBorder(new EmptyBorder(20, 20, 20, 20));
+            GridBagConstraints gbc = new GridBagConstraints();
+            gbc.insets = new Insets(10, 10, 10, 10);
+
+            gbc.gridx = 0; gbc.gridy = 0;
+            panel.add(new JLabel("Service:"), gbc);
+            gbc.gridx = 1;
+            panel.add(new JLabel(credential.getServiceName()), gbc);
+
+            gbc.gridx = 0; gbc.gridy = 1;
+            panel.add(new JLabel("Username:"), gbc);
+            gbc.gridx = 1;
+            panel.add(new JLabel(credential.getUsername()), gbc);
+
+            gbc.gridx = 0; gbc.gridy = 2;
+            panel.add(new JLabel("Password:"), gbc);
+            gbc.gridx = 1;
+            // Swing text components only hold Strings; the decrypted copy is wiped here
+            JTextField passwordDisplay = new JTextField(result.getPassword());
+            result.close();
+            passwordDisplay.setEditable(false);
+            passwordDisplay.setBackground(Color.LIGHT_GRAY);
+            panel.add(passwordDisplay, gbc);
+
+            gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 2;
+            JButton closeBtn = new JButton("Close");
+            closeBtn.addActionListener(e -> passwordDialog.dispose());
+            panel.add(closeBtn, gbc);
+
+            passwordDialog.add(panel);
+            passwordDialog.setVisible(true);
+        } else {
+            JOptionPane.showMessageDialog(this, getCredentialResultMessage(result.getResult()), 
+                "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
@@ -466,23 +527,152 @@ public class PasswordManagerGUI extends JFrame {
             "Confirm Removal", JOptionPane.YES_NO_OPTION);
 
         if (confirm == JOptionPane.YES_OPTION) {
-            if (passwordManager.removeCredential(selectedRow)) {
+            ServiceCredential credential = tableModel.getCredential(selectedRow);
+            runInBackground("Removing credential...", asyncManager.removeById(credential.getId()), result -> {
+                if (result == PasswordManager.CredentialResult.SUCCESS
+                        || result == PasswordManager.CredentialResult.IO_ERROR) {
+                    if (showingSearchResults) {
+                        tableModel.getRows().remove(selectedRow);
+                    }
+                    tableModel.rowDeleted(selectedRow);
+                }
+                if (result == PasswordManager.CredentialResult.SUCCESS) {
+                    JOptionPane.showMessageDialog(this, "Credential removed successfully!");
+                } else {
+                    JOptionPane.showMessageDialog(this, getCredentialResultMessage(result),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        }
+    }
+
+    private void showChangeMasterPasswordDialog() {
+        JPasswordField currentPasswordField = new JPasswordField();
+        JPasswordField newPasswordField = new JPasswordField();
+        JPasswordField confirmPasswordField = new JPasswordField();
+        int option = JOptionPane.showConfirmDialog(this,
+            new Object[]{"Current master password:", currentPasswordField,
+                "New master password:", newPasswordField,
+                "Confirm new master password:", confirmPasswordField},
+            "Change Master Password", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+
+        if (option != JOptionPane.OK_OPTION) {
+            return;
+        }
+
+        char[] newPassword = newPasswordField.getPassword();
+        char[] confirmPassword = confirmPasswordField.getPassword();
+        boolean matches = Arrays.equals(newPassword, confirmPassword);
+        SecretBuffer.wipe(confirmPassword);
+        if (!matches) {
+            SecretBuffer.wipe(newPassword);
+            JOptionPane.showMessageDialog(this, "Passwords do not match!",
+                "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        CompletableFuture<PasswordManager.MasterPasswordChangeResult> change = asyncManager.changeMasterPassword(
+            currentPasswordField.getPassword(), newPassword);
+        runInBackground("Re-encrypting vault...", change, result -> {
+            if (result.isSuccess()) {
+                JOptionPane.showMessageDialog(this, String.format(
+                    "Master password changed.%nRe-encrypted %d credentials in %d ms (%.0f entries/s).",
+                    result.getEntries(), result.getElapsedMillis(), result.getEntriesPerSecond()));
+                // The vault was replaced by its re-encrypted copy
                 refreshCredentialsTable();
-                JOptionPane.showMessageDialog(this, "Credential removed successfully!");
             } else {
-                JOptionPane.showMessageDialog(this, "Error removing credential.", 
+                JOptionPane.showMessageDialog(this, getCredentialResultMessage(result.getResult()),
                     "Error", JOptionPane.ERROR_MESSAGE);
             }
+        });
+    }
+
+    // Run a task on the worker thread and hand its result to onSuccess on the EDT. The window
+    // is disabled meanwhile, and a task still running after a moment gets a progress dialog
+    // whose Cancel button gives up waiting for it.
+    private <T> void runInBackground(String message, CompletableFuture<T> task, Consumer<T> onSuccess) {
+        // The window the request came from, e.g. the add dialog, takes no input until it is done
+        Window owner = KeyboardFocusManager.getCurrentKeyboardFocusManager().getActiveWindow();
+        if (owner == null) {
+            owner = this;
         }
+        Window blocked = owner;
+        JDialog progressDialog = new JDialog(owner, "Please wait", Dialog.ModalityType.DOCUMENT_MODAL);
+        progressDialog.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+        JPanel panel = new JPanel(new BorderLayout(10, 10));
+        panel.setBorder(new EmptyBorder(15, 15, 15, 15));
+        panel.add(new JLabel(message), BorderLayout.NORTH);
+        JProgressBar progressBar = new JProgressBar();
+        progressBar.setIndeterminate(true);
+        panel.add(progressBar, BorderLayout.CENTER);
+        JButton cancelBtn = new JButton("Cancel");
+        cancelBtn.addActionListener(e -> task.cancel(false));
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        buttonPanel.add(cancelBtn);
+        panel.add(buttonPanel, BorderLayout.SOUTH);
+        progressDialog.add(panel);
+        progressDialog.pack();
+        progressDialog.setLocationRelativeTo(owner);
+
+        Timer showTimer = new Timer(PROGRESS_DELAY_MILLIS, e -> {
+            if (!task.isDone()) {
+                progressDialog.setVisible(true);
+            }
+        });
+        showTimer.setRepeats(false);
+        blocked.setEnabled(false);
+        blocked.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        showTimer.start();
+
+        task.whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            showTimer.stop();
+            progressDialog.dispose();
+            blocked.setEnabled(true);
+            blocked.setCursor(Cursor.getDefaultCursor());
+            if (error == null) {
+                onSuccess.accept(result);
+            } else if (!(error instanceof CancellationException)) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+                JOptionPane.showMessageDialog(this, "Operation failed: " + cause.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }));
     }
 
+    // Show the live vault, or search off the EDT and show the results when they arrive
     private void refreshCredentialsTable() {
-        tableModel.setRowCount(0);
-        List<ServiceCredential> credentials = passwordManager.getCredentials();
-        
-        for (ServiceCredential credential : credentials) {
-            tableModel.addRow(new Object[]{credential.getServiceName(), credential.getUsername()});
+        String query = searchField.getText().trim();
+        int generation = ++searchGeneration;
+        if (pendingSearch != null) {
+            // Skip a superseded search that has not started yet
+            pendingSearch.cancel(false);
+            pendingSearch = null;
+        }
+        if (query.isEmpty()) {
+            showingSearchResults = false;
+            tableModel.setRows(passwordManager.getCredentialView());
+            return;
         }
+
+        // No progress dialog here: the field must keep taking keystrokes while results arrive
+        CompletableFuture<List<ServiceCredential>> search =
+            asyncManager.searchCredentials(query, SEARCH_RESULT_LIMIT);
+        pendingSearch = search;
+        search.whenComplete((results, error) ->
+            SwingUtilities.invokeLater(() -> {
+                if (generation != searchGeneration) {
+                    return;
+                }
+                pendingSearch = null;
+                if (error != null) {
+                    JOptionPane.showMessageDialog(PasswordManagerGUI.this, "Error searching credentials.",
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                showingSearchResults = true;
+                tableModel.setRows(new ArrayList<>(results));
+            }));
     }
 
     private void showStatus(String message, boolean isError) {
@@ -500,6 +690,12 @@ public class PasswordManagerGUI extends JFrame {
                 return "Error with encryption/decryption.";
             case INVALID_MASTER_PASSWORD:
                 return "Invalid master password.";
+            case WEAK_PASSWORD:
+                return "Password must be at least 6 characters long.";
+            case NOT_FOUND:
+                return "The credential no longer exists.";
+            case IO_ERROR:
+                return "Could not save the change to disk. Log out and back in to see what was saved.";
             default:
                 return "Unknown error.";
         }
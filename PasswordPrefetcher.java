@@ -0,0 +1,67 @@
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Decrypts the passwords a session is most likely to reveal into its PasswordCache on a
+// background thread right after login, so the first reveal of a frequently used credential
+// finds its password ready. Likelihood comes from the vault's AccessStats. Each password is
+// decrypted under the vault's read lock, one at a time, so foreground work never waits long.
+public final class PasswordPrefetcher {
+    // One low-priority thread for every session; it exits when idle
+    private static final ExecutorService EXECUTOR = newExecutor();
+
+    private PasswordPrefetcher() {
+    }
+
+    // Queue decryption of up to count of the vault's most revealed credentials
+    public static void prefetch(UserVault vault, PasswordCache cache, int count) {
+        if (count <= 0 || !cache.isEnabled()) {
+            return;
+        }
+        long generation = cache.generation();
+        EXECUTOR.execute(() -> run(vault, cache, count, generation));
+    }
+
+    private static void run(UserVault vault, PasswordCache cache, int count, long generation) {
+        List<Long> ids = vault.getAccessStats().top(count, System.currentTimeMillis());
+        for (long id : ids) {
+            if (cache.contains(id)) {
+                continue;
+            }
+            vault.getLock().readLock().lock();
+            try {
+                ServiceCredential credential = vault.getCredentials().findById(id);
+                if (credential == null) {
+                    continue;
+                }
+                try (SecretBuffer password = CryptoUtil.decryptSecret(credential.getEncryptedPassword(),
+                        vault.getKey(), credential.getAssociatedData())) {
+                    if (!cache.put(id, password, generation)) {
+                        // The session logged out meanwhile
+                        return;
+                    }
+                }
+                Metrics.PASSWORD_PREFETCHES.add(1);
+            } catch (RuntimeException e) {
+                // The vault was closed under us, and its key wiped; nothing left to do
+                return;
+            } finally {
+                vault.getLock().readLock().unlock();
+            }
+        }
+    }
+
+    private static ExecutorService newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "password-prefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,39 @@
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// PBKDF2-HMAC-SHA256 through the JDK provider
+public class Pbkdf2Kdf implements KeyDerivationFunction {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private final int iterations;
+
+    public Pbkdf2Kdf(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+        this.iterations = iterations;
+    }
+
+    @Override
+    public byte[] derive(char[] password, byte[] salt, int length) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, length * 8);
+        SecretKey key = null;
+        try {
+            key = SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec);
+            // getEncoded is the caller's copy; the provider's own key is wiped below where it
+            // supports destroy, and the copy of the password held by the spec always is
+            return key.getEncoded();
+        } catch (Exception e) {
+            throw new RuntimeException("Error deriving key", e);
+        } finally {
+            spec.clearPassword();
+            CryptoUtil.destroyKey(key);
+        }
+    }
+
+    @Override
+    public KdfParameters getParameters() {
+        return KdfParameters.pbkdf2(iterations);
+    }
+}
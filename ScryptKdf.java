@@ -0,0 +1,152 @@
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Memory-hard scrypt (RFC 7914) in pure Java. Each derivation touches 128 * r * N bytes,
+// which makes large-scale guessing on GPUs and ASICs far more expensive than PBKDF2.
+public class ScryptKdf implements KeyDerivationFunction {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final int n;
+    private final int r;
+    private final int p;
+
+    public ScryptKdf(int n, int r, int p) {
+        if (n < 2 || (n & (n - 1)) != 0) {
+            throw new IllegalArgumentException("N must be a power of two greater than 1");
+        }
+        if (r < 1 || p < 1 || (long) r * p >= 1 << 30 || n > Integer.MAX_VALUE / (32 * r)) {
+            throw new IllegalArgumentException("Invalid scrypt parameters");
+        }
+        this.n = n;
+        this.r = r;
+        this.p = p;
+    }
+
+    @Override
+    public byte[] derive(char[] password, byte[] salt, int length) {
+        byte[] b = null;
+        try (SecretBuffer passwordBytes = SecretBuffer.encode(password)) {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            // SecretKeySpec rejects empty keys; HMAC zero-pads short keys, so one zero byte is equivalent
+            mac.init(passwordBytes.length() > 0 ? passwordBytes.asKey(MAC_ALGORITHM)
+                    : new SecretKeySpec(new byte[1], MAC_ALGORITHM));
+
+            int blockLength = 128 * r;
+            b = pbkdf2Sha256(mac, salt, p * blockLength);
+            int[] x = new int[32 * r];
+            int[] scratch = new int[32 * r];
+            int[] salsa = new int[16];
+            int[] v = new int[32 * r * n];
+            for (int i = 0; i < p; i++) {
+                decode(b, i * blockLength, x);
+                roMix(x, v, scratch, salsa);
+                encode(x, b, i * blockLength);
+            }
+            Arrays.fill(x, 0);
+            Arrays.fill(v, 0);
+            return pbkdf2Sha256(mac, b, length);
+        } catch (Exception e) {
+            throw new RuntimeException("Error deriving key", e);
+        } finally {
+            if (b != null) {
+                Arrays.fill(b, (byte) 0);
+            }
+        }
+    }
+
+    @Override
+    public KdfParameters getParameters() {
+        return KdfParameters.scrypt(n, r, p);
+    }
+
+    // Single-iteration PBKDF2-HMAC-SHA256 with the password already loaded into the MAC
+    private static byte[] pbkdf2Sha256(Mac mac, byte[] salt, int length) {
+        byte[] output = new byte[length];
+        int offset = 0;
+        for (int block = 1; offset < length; block++) {
+            mac.update(salt);
+            mac.update((byte) (block >>> 24));
+            mac.update((byte) (block >>> 16));
+            mac.update((byte) (block >>> 8));
+            mac.update((byte) block);
+            byte[] u = mac.doFinal();
+            int chunk = Math.min(u.length, length - offset);
+            System.arraycopy(u, 0, output, offset, chunk);
+            offset += chunk;
+        }
+        return output;
+    }
+
+    private void roMix(int[] x, int[] v, int[] scratch, int[] salsa) {
+        int words = 32 * r;
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(x, 0, v, i * words, words);
+            blockMix(x, scratch, salsa);
+        }
+        for (int i = 0; i < n; i++) {
+            int j = x[(2 * r - 1) * 16] & (n - 1);
+            int base = j * words;
+            for (int k = 0; k < words; k++) {
+                x[k] ^= v[base + k];
+            }
+            blockMix(x, scratch, salsa);
+        }
+    }
+
+    // BlockMix with Salsa20/8: even output blocks go to the first half, odd ones to the second
+    private void blockMix(int[] b, int[] y, int[] x) {
+        System.arraycopy(b, (2 * r - 1) * 16, x, 0, 16);
+        for (int i = 0; i < 2 * r; i++) {
+            for (int k = 0; k < 16; k++) {
+                x[k] ^= b[i * 16 + k];
+            }
+            salsa208(x);
+            int target = (i % 2 == 0) ? (i / 2) * 16 : (r + i / 2) * 16;
+            System.arraycopy(x, 0, y, target, 16);
+        }
+        System.arraycopy(y, 0, b, 0, 32 * r);
+    }
+
+    private static void salsa208(int[] b) {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+        for (int i = 0; i < 8; i += 2) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);   x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);  x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);    x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);  x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);  x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);  x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);  x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);  x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);    x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);   x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);    x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);   x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);  x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);  x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7); x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3; b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11; b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+
+    private static void decode(byte[] src, int offset, int[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            int o = offset + 4 * i;
+            dst[i] = (src[o] & 0xff) | (src[o + 1] & 0xff) << 8 | (src[o + 2] & 0xff) << 16 | (src[o + 3] & 0xff) << 24;
+        }
+    }
+
+    private static void encode(int[] src, byte[] dst, int offset) {
+        for (int i = 0; i < src.length; i++) {
+            int o = offset + 4 * i;
+            dst[o] = (byte) src[i];
+            dst[o + 1] = (byte) (src[i] >>> 8);
+            dst[o + 2] = (byte) (src[i] >>> 16);
+            dst[o + 3] = (byte) (src[i] >>> 24);
+        }
+    }
+}
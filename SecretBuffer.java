@@ -0,0 +1,189 @@
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.SecretKey;
+
+// Secret bytes, such as derived keys and decrypted passwords, held outside the Java heap in a
+// direct buffer and zeroed on close. The garbage collector never copies them around, and
+// wiping them is immediate instead of waiting for (or forcing) a collection.
+//
+// The JCE and Swing only take heap arrays and Strings, so short-lived heap copies are still
+// made while a cipher is initialised or a password is shown. Callers wipe those copies as soon
+// as they are done with them; copyBytes and decodeChars exist for exactly that use.
+public final class SecretBuffer implements AutoCloseable {
+    private final ByteBuffer buffer;
+    private volatile boolean closed;
+
+    private SecretBuffer(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    // Move bytes into a new buffer, zeroing the array they came from
+    public static SecretBuffer wrap(byte[] bytes) {
+        SecretBuffer secret = new SecretBuffer(bytes.length);
+        secret.buffer.put(bytes);
+        secret.buffer.flip();
+        Arrays.fill(bytes, (byte) 0);
+        return secret;
+    }
+
+    // UTF-8 encode characters straight into a new buffer, without going through a String
+    public static SecretBuffer encode(char[] chars) {
+        CharsetEncoder encoder = newEncoder();
+        SecretBuffer secret = new SecretBuffer((int) Math.ceil(chars.length * (double) encoder.maxBytesPerChar()));
+        encoder.encode(CharBuffer.wrap(chars), secret.buffer, true);
+        encoder.flush(secret.buffer);
+        secret.buffer.flip();
+        return secret;
+    }
+
+    // UTF-8 bytes of characters in a heap array, for a MAC or cipher that is about to consume
+    // them; cheaper than a buffer when the caller zeroes the result right after use
+    public static byte[] encodeToArray(char[] chars) {
+        CharsetEncoder encoder = newEncoder();
+        ByteBuffer encoded = ByteBuffer.allocate((int) Math.ceil(chars.length * (double) encoder.maxBytesPerChar()));
+        encoder.encode(CharBuffer.wrap(chars), encoded, true);
+        encoder.flush(encoded);
+        byte[] bytes = Arrays.copyOf(encoded.array(), encoded.position());
+        Arrays.fill(encoded.array(), (byte) 0);
+        return bytes;
+    }
+
+    private static CharsetEncoder newEncoder() {
+        return StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public int length() {
+        checkOpen();
+        return buffer.limit();
+    }
+
+    // A heap copy for APIs that need an array; the caller zeroes it after use
+    public byte[] copyBytes() {
+        checkOpen();
+        byte[] copy = new byte[buffer.limit()];
+        buffer.duplicate().get(copy);
+        return copy;
+    }
+
+    // The content decoded as UTF-8; the caller zeroes the array after use
+    public char[] decodeChars() {
+        checkOpen();
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer decoded = CharBuffer.allocate(buffer.limit());
+        decoder.decode(buffer.duplicate(), decoded, true);
+        decoder.flush(decoded);
+        char[] chars = Arrays.copyOf(decoded.array(), decoded.position());
+        Arrays.fill(decoded.array(), '\0');
+        return chars;
+    }
+
+    // Constant-time comparison with a known value
+    public boolean matches(byte[] expected) {
+        byte[] actual = copyBytes();
+        try {
+            return MessageDigest.isEqual(expected, actual);
+        } finally {
+            Arrays.fill(actual, (byte) 0);
+        }
+    }
+
+    public SecretBuffer copy() {
+        return wrap(copyBytes());
+    }
+
+    // Zero a password array once it has been used; null is ignored
+    public static void wipe(char[] chars) {
+        if (chars != null) {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    // Characters of a password that only exists as a String, e.g. in a JSON request, so the
+    // char[] methods can be used; wipe them afterwards. Null stays null.
+    public static char[] chars(String password) {
+        return password == null ? null : password.toCharArray();
+    }
+
+    // A key backed by this buffer. Destroying the key closes the buffer and the other way round.
+    public SecretKey asKey(String algorithm) {
+        return new Key(this, algorithm);
+    }
+
+    // Zero the content; further use fails
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Secret has been wiped");
+        }
+    }
+
+    // getEncoded hands out a fresh heap copy each time, as the SecretKey contract requires.
+    // Ciphers and MACs read it once while being initialised and keep only their expanded key.
+    private static final class Key implements SecretKey {
+        private static final long serialVersionUID = 1L;
+
+        private final transient SecretBuffer secret;
+        private final String algorithm;
+
+        Key(SecretBuffer secret, String algorithm) {
+            this.secret = secret;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return secret.copyBytes();
+        }
+
+        @Override
+        public void destroy() {
+            secret.close();
+        }
+
+        @Override
+        public boolean isDestroyed() {
+            return secret.isClosed();
+        }
+
+        private void writeObject(ObjectOutputStream out) throws NotSerializableException {
+            throw new NotSerializableException("Keys are never serialized");
+        }
+    }
+}
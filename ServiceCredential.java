@@ -3,27 +3,83 @@ import java.io.Serializable;
 public class ServiceCredential implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    // Stable id: the journal sequence number of the add that created the record. Records from
+    // vaults written before ids existed get legacyId(position), which sorts below every
+    // sequence number, so a vault in its stored order is always sorted by id.
+    private long id;
     private String serviceName;
     private String username;
     private byte[] encryptedPassword;
     private byte[] iv;
+    // CryptoUtil.CipherScheme id; zero (CBC) in records serialized before schemes existed
+    private int cipherScheme;
+
+    // Set when the record lives in a memory-mapped vault and is decoded on demand
+    private transient MappedCredentialStore store;
+    private transient int recordIndex;
 
     public ServiceCredential(String serviceName, String username, CryptoUtil.EncryptedData encryptedPassword) {
+        this(0, serviceName, username, encryptedPassword);
+    }
+
+    public ServiceCredential(long id, String serviceName, String username, CryptoUtil.EncryptedData encryptedPassword) {
+        this.id = id;
         this.serviceName = serviceName;
         this.username = username;
         this.encryptedPassword = encryptedPassword.getData();
         this.iv = encryptedPassword.getIv();
+        this.cipherScheme = encryptedPassword.getScheme().getId();
+    }
+
+    ServiceCredential(MappedCredentialStore store, int recordIndex) {
+        this.store = store;
+        this.recordIndex = recordIndex;
+        this.id = store.getId(recordIndex);
+    }
+
+    static long legacyId(int position) {
+        return Long.MIN_VALUE + position;
+    }
+
+    // Same record under a different id
+    ServiceCredential withId(long id) {
+        return new ServiceCredential(id, getServiceName(), getUsername(), getEncryptedPassword());
     }
 
     // Getters
-    public String getServiceName() { return serviceName; }
-    public String getUsername() { return username; }
+    public long getId() {
+        return id;
+    }
+
+    public String getServiceName() {
+        if (serviceName == null && store != null) {
+            serviceName = store.getServiceName(recordIndex);
+        }
+        return serviceName;
+    }
+
+    public String getUsername() {
+        if (username == null && store != null) {
+            username = store.getUsername(recordIndex);
+        }
+        return username;
+    }
+
+    // Mapped records read their ciphertext straight from the file each time
     public CryptoUtil.EncryptedData getEncryptedPassword() {
-        return new CryptoUtil.EncryptedData(encryptedPassword, iv);
+        if (store != null) {
+            return store.getEncryptedPassword(recordIndex);
+        }
+        return new CryptoUtil.EncryptedData(CryptoUtil.CipherScheme.fromId(cipherScheme), encryptedPassword, iv);
+    }
+
+    // Authenticated data the password ciphertext is bound to
+    public byte[] getAssociatedData() {
+        return CryptoUtil.credentialAad(getServiceName(), getUsername());
     }
 
     @Override
     public String toString() {
-        return String.format("Service: %s | Username: %s", serviceName, username);
+        return String.format("Service: %s | Username: %s", getServiceName(), getUsername());
     }
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+
+// Short-lived re-verification cache for the master password. After a full PBKDF2 check
+// the password is bound to a random per-session secret with HMAC-SHA256; until the
+// trust window expires, later checks compare against that verifier in constant time
+// instead of re-running the KDF.
+public class SessionVerifier {
+    private static final int SECRET_LENGTH = 32;
+    private static final long DEFAULT_TIMEOUT_SECONDS =
+            Long.getLong("anticloud.reverifyTimeoutSeconds", 120);
+
+    private long timeoutNanos;
+    private SecretBuffer sessionSecret;
+    private byte[] verifier;
+    private long trustedUntil;
+
+    public SessionVerifier() {
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_TIMEOUT_SECONDS);
+    }
+
+    // A timeout of zero disables the cache so every check runs the full KDF
+    public void setTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        this.timeoutNanos = unit.toNanos(timeout);
+        invalidate();
+    }
+
+    // Remember a password that has just passed full authentication and open a trust window
+    public void establish(char[] password) {
+        invalidate();
+        if (timeoutNanos == 0) {
+            return;
+        }
+        byte[] secret = new byte[SECRET_LENGTH];
+        CryptoContext.nextBytes(secret);
+        sessionSecret = SecretBuffer.wrap(secret);
+        verifier = mac(password);
+        trustedUntil = System.nanoTime() + timeoutNanos;
+    }
+
+    // Whether a cheap check can stand in for full authentication right now
+    public boolean isTrusted() {
+        return verifier != null && System.nanoTime() - trustedUntil < 0;
+    }
+
+    // Constant-time comparison against the session verifier; only meaningful while trusted
+    public boolean verify(char[] password) {
+        if (!isTrusted()) {
+            return false;
+        }
+        byte[] actual = mac(password);
+        try {
+            return MessageDigest.isEqual(verifier, actual);
+        } finally {
+            Arrays.fill(actual, (byte) 0);
+        }
+    }
+
+    // Forget the verifier and secret, e.g. on logout
+    public void invalidate() {
+        if (sessionSecret != null) {
+            sessionSecret.close();
+            sessionSecret = null;
+        }
+        if (verifier != null) {
+            Arrays.fill(verifier, (byte) 0);
+            verifier = null;
+        }
+    }
+
+    private byte[] mac(char[] password) {
+        byte[] passwordBytes = null;
+        try {
+            passwordBytes = SecretBuffer.encodeToArray(password);
+            Mac mac = CryptoContext.mac();
+            mac.init(sessionSecret.asKey(CryptoUtil.MAC_ALGORITHM));
+            return mac.doFinal(passwordBytes);
+        } catch (Exception e) {
+            throw new RuntimeException("Error computing session verifier", e);
+        } finally {
+            if (passwordBytes != null) {
+                Arrays.fill(passwordBytes, (byte) 0);
+            }
+        }
+    }
+}
@@ -1,27 +1,91 @@
 import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.Base64;
 
 public class User implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    // Version 1 stores the raw PBKDF2 output, which doubles as the encryption key.
+    // Version 2 stores an HKDF-expanded verifier and encrypts with a separate expanded key.
+    public static final int LEGACY_VERSION = 1;
+    public static final int CURRENT_VERSION = 2;
+
     private String username;
     private String hashedPassword;
     private byte[] salt;
+    // Zero in records serialized before versioning existed
+    private int version;
+    // Null in records created before per-user KDF parameters existed
+    private KdfParameters kdfParameters;
 
-    public User(String username, String password) {
+    public User(String username, char[] password) {
         this.username = username;
         this.salt = CryptoUtil.generateSalt();
-        this.hashedPassword = CryptoUtil.hashPassword(password, salt);
+        this.kdfParameters = KdfCalibrator.registrationParameters();
+        CryptoUtil.KeyMaterial keys = CryptoUtil.deriveKeyMaterial(password, salt, kdfParameters);
+        this.hashedPassword = encode(keys.getVerifier());
+        keys.destroy();
+        this.version = CURRENT_VERSION;
+    }
+
+    // Rebuild a stored user record
+    User(String username, String hashedPassword, byte[] salt, int version, KdfParameters kdfParameters) {
+        this.username = username;
+        this.hashedPassword = hashedPassword;
+        this.salt = salt;
+        this.version = version;
+        this.kdfParameters = kdfParameters;
+    }
+
+    public boolean authenticate(char[] password) {
+        CryptoUtil.KeyMaterial keys = unlock(password);
+        if (keys == null) {
+            return false;
+        }
+        keys.destroy();
+        return true;
+    }
+
+    // Run the KDF once and return the derived keys if the password is correct, null otherwise.
+    // The caller destroys the keys when done with them.
+    public CryptoUtil.KeyMaterial unlock(char[] password) {
+        CryptoUtil.KeyMaterial keys = CryptoUtil.deriveKeyMaterial(password, salt, getKdfParameters());
+        byte[] expected = Base64.getDecoder().decode(hashedPassword);
+        boolean matches = isLegacy() ? keys.rootKeyMatches(expected)
+                : MessageDigest.isEqual(expected, keys.getVerifier());
+        if (!matches) {
+            keys.destroy();
+            return null;
+        }
+        return keys;
     }
 
-    public boolean authenticate(String password) {
-        String inputHash = CryptoUtil.hashPassword(password, salt);
-        return hashedPassword.equAals(inputHash);
+    // Same account re-recorded with the current verifier scheme
+    public User upgrade(CryptoUtil.KeyMaterial keys) {
+        return new User(username, encode(keys.getVerifier()), salt, CURRENT_VERSION, kdfParameters);
+    }
+
+    // Same account under a new master password, given the keys already derived for it
+    public User rekey(byte[] newSalt, KdfParameters newKdfParameters, CryptoUtil.KeyMaterial keys) {
+        return new User(username, encode(keys.getVerifier()), newSalt, CURRENT_VERSION, newKdfParameters);
+    }
+
+    public boolean isLegacy() {
+        return getVersion() < CURRENT_VERSION;
+    }
+
+    private static String encode(byte[] value) {
+        return Base64.getEncoder().encodeToString(value);
     }
 
     // Getters
     public String getUsername() { return username; }
     public String getHashedPassword() { return hashedPassword; }
     public byte[] getSalt() { return salt; }
+    public int getVersion() { return version == 0 ? LEGACY_VERSION : version; }
+    public KdfParameters getKdfParameters() {
+        return kdfParameters != null ? kdfParameters : KdfParameters.legacyDefault();
+    }
 
     @Override
     public boolean equals(Object obj) {
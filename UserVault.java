@@ -0,0 +1,146 @@
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import javax.crypto.SecretKey;
+
+// The open vault of one account: its record, encryption key, journal and in-memory
+// credentials. Every session of the account in this JVM shares one instance, opened and
+// closed by VaultStore. Sessions hold the vault's read lock to use it and its write lock to
+// change it. The vault's lock file stays locked while it is open, so another process cannot
+// write the same files at the same time.
+public class UserVault {
+    private final String username;
+    private final ReadWriteLock lock;
+    private final FileLock fileLock;
+    private User user;
+    private SecretKey key;
+    private byte[] keyCheck;
+    private CredentialJournal journal;
+    private CredentialRepository credentials;
+    private AccessStats accessStats;
+    // Bumped on every master password change so other sessions re-verify the password
+    private int keyGeneration;
+    // Sessions attached; only touched by VaultStore under the write lock
+    int sessions;
+
+    private UserVault(String username, ReadWriteLock lock, FileLock fileLock) {
+        this.username = username;
+        this.lock = lock;
+        this.fileLock = fileLock;
+    }
+
+    // Open the account's vault under keys derived from its password, or return null if
+    // another process has it open
+    static UserVault open(User user, CryptoUtil.KeyMaterial keys, ReadWriteLock lock) {
+        long started = Metrics.start();
+        FileLock fileLock = FileManager.tryLockVault(user.getUsername());
+        if (fileLock == null) {
+            return null;
+        }
+        UserVault vault = new UserVault(user.getUsername(), lock, fileLock);
+        try {
+            vault.load(user, keys);
+        } catch (RuntimeException e) {
+            CryptoUtil.destroyKey(vault.key);
+            FileManager.releaseVaultLock(fileLock);
+            throw e;
+        }
+        Metrics.VAULT_OPEN.stop(started);
+        return vault;
+    }
+
+    // The vault keeps its own off-heap copy of the key, so the caller can destroy its keys
+    private void load(User user, CryptoUtil.KeyMaterial keys) {
+        key = CryptoUtil.copyKey(keys.getEncryptionKey());
+        journal = CredentialJournal.open(username, CryptoUtil.keyCheck(key));
+        credentials = new CredentialRepository(journal.getRecoveredCredentials());
+        accessStats = FileManager.loadAccessStats(username);
+        if (user.isLegacy()) {
+            user = migrateLegacyUser(user, keys);
+        } else if (journal.getKeyCheck() == null) {
+            journal.setKeyCheck(CryptoUtil.keyCheck(key));
+        }
+        this.user = user;
+        keyCheck = CryptoUtil.keyCheck(key);
+    }
+
+    // Move a version 1 account to split verifier/encryption keys. The vault is re-encrypted
+    // and saved with the new key check before the user record changes, so after a crash in
+    // between the key check still tells which key the vault is under.
+    private User migrateLegacyUser(User user, CryptoUtil.KeyMaterial keys) {
+        SecretKey legacyKey = keys.getLegacyKey();
+        byte[] newKeyCheck = CryptoUtil.keyCheck(key);
+        byte[] vaultKeyCheck = journal.getKeyCheck();
+
+        if (vaultKeyCheck == null || Arrays.equals(vaultKeyCheck, CryptoUtil.keyCheck(legacyKey))) {
+            List<ServiceCredential> reencrypted = null;
+            try {
+                reencrypted = BulkCrypto.reencrypt(credentials.asList(), legacyKey, key);
+                journal.rewrite(reencrypted, newKeyCheck);
+            } catch (RuntimeException e) {
+                System.err.println("Error migrating vault: " + e.getMessage());
+                if (!Arrays.equals(journal.getKeyCheck(), newKeyCheck)) {
+                    // Nothing was persisted; keep working under the old key and retry on the next login
+                    CryptoUtil.destroyKey(key);
+                    key = CryptoUtil.copyKey(legacyKey);
+                    journal.setKeyCheck(CryptoUtil.keyCheck(legacyKey));
+                    return user;
+                }
+            }
+            credentials.replace(reencrypted);
+        }
+
+        User upgraded = user.upgrade(keys);
+        FileManager.saveUser(upgraded);
+        return upgraded;
+    }
+
+    // Whether keys derived by another login are the ones this vault is open under
+    boolean isUnlockedBy(CryptoUtil.KeyMaterial keys) {
+        return Arrays.equals(keyCheck, CryptoUtil.keyCheck(keys.getEncryptionKey()))
+                || Arrays.equals(keyCheck, CryptoUtil.keyCheck(keys.getLegacyKey()));
+    }
+
+    // Switch to a new master password once the re-encrypted vault and user record are saved
+    void rekey(User rotated, SecretKey newKey, List<ServiceCredential> reencrypted) {
+        user = rotated;
+        CryptoUtil.destroyKey(key);
+        key = CryptoUtil.copyKey(newKey);
+        keyCheck = CryptoUtil.keyCheck(newKey);
+        credentials.replace(reencrypted);
+        keyGeneration++;
+    }
+
+    void close() {
+        try {
+            journal.close();
+            credentials.clear();
+            saveAccessStats();
+        } finally {
+            CryptoUtil.destroyKey(key);
+            FileManager.releaseVaultLock(fileLock);
+        }
+    }
+
+    // Losing reveal statistics only makes prefetching less accurate, so closing goes ahead
+    private void saveAccessStats() {
+        if (!accessStats.isDirty()) {
+            return;
+        }
+        try {
+            FileManager.saveAccessStats(username, accessStats);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() + ": " + e.getCause());
+        }
+    }
+
+    public String getUsername() { return username; }
+    public ReadWriteLock getLock() { return lock; }
+    public User getUser() { return user; }
+    public SecretKey getKey() { return key; }
+    public CredentialJournal getJournal() { return journal; }
+    public CredentialRepository getCredentials() { return credentials; }
+    // Shared by every session of the account; saved when the vault closes
+    public AccessStats getAccessStats() { return accessStats; }
+    public int getKeyGeneration() { return keyGeneration; }
+}
@@ -0,0 +1,268 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Versioned, length-prefixed binary encoding for user records, the legacy users.dat,
+// <hash>_credentials.dat and the <hash>_access.dat reveal statistics beside it.
+// Every file starts with a 4-byte magic and a version byte; strings are UTF-8 and
+// byte arrays are written with an int length prefix.
+//
+// Credentials version 2 appends a table of int record offsets after the records so the
+// file can be served through MappedCredentialStore without decoding it up front.
+// Version 3 adds a key check to the header identifying the key the records are under.
+// Version 4 starts each record with the id of the cipher scheme that produced it.
+// Version 5 follows the scheme with the record's stable credential id.
+// Users version 2 records the verifier scheme of each account, version 3 its KDF parameters.
+// users.dat is only read now, to migrate it to one user record file per account.
+public class VaultCodec {
+    static final int USERS_MAGIC = 0x41435553;       // "ACUS"
+    static final int USER_RECORD_MAGIC = 0x41435552; // "ACUR"
+    static final int CREDENTIALS_MAGIC = 0x41435643; // "ACVC"
+    static final int ACCESS_STATS_MAGIC = 0x41434153; // "ACAS"
+    static final int USERS_VERSION = 3;
+    static final int USER_RECORD_VERSION = 1;
+    static final int CREDENTIALS_VERSION = 5;
+    static final int ACCESS_STATS_VERSION = 1;
+    static final int KEY_CHECK_LENGTH = 16;
+    // magic + version + journal sequence + record count + key check
+    static final int CREDENTIALS_HEADER_LENGTH = 4 + 1 + 8 + 4 + KEY_CHECK_LENGTH;
+
+    // First two bytes of a java.io.ObjectOutputStream stream
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+    private static final int MAX_FIELD_LENGTH = 1 << 20;
+    // Cap on up-front list capacity so a corrupt count cannot trigger a huge allocation
+    private static final int MAX_INITIAL_CAPACITY = 1 << 16;
+
+    // Check whether a stream holds a legacy Java-serialized file. The stream must support mark/reset.
+    public static boolean isLegacyFormat(InputStream in) throws IOException {
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        return ((first << 8) | second) == SERIALIZATION_MAGIC;
+    }
+
+    // Peek at the version byte of a credentials file. The stream must support mark/reset.
+    public static int peekCredentialsVersion(InputStream in) throws IOException {
+        in.mark(5);
+        DataInputStream data = new DataInputStream(in);
+        int magic = data.readInt();
+        int version = data.readUnsignedByte();
+        in.reset();
+        return magic == CREDENTIALS_MAGIC ? version : -1;
+    }
+
+    // A single account, stored in its own file so accounts are read and written one at a time
+    public static void writeUser(DataOutputStream out, User user) throws IOException {
+        out.writeInt(USER_RECORD_MAGIC);
+        out.writeByte(USER_RECORD_VERSION);
+        writeUserFields(out, user);
+    }
+
+    public static User readUser(DataInputStream in) throws IOException {
+        readHeader(in, USER_RECORD_MAGIC, USER_RECORD_VERSION);
+        return readUserFields(in, USERS_VERSION);
+    }
+
+    public static Map<String, User> readUsers(DataInputStream in) throws IOException {
+        int formatVersion = readHeader(in, USERS_MAGIC, USERS_VERSION);
+        int count = readCount(in);
+        Map<String, User> users = new HashMap<>(Math.min(count, MAX_INITIAL_CAPACITY) * 2);
+        for (int i = 0; i < count; i++) {
+            User user = readUserFields(in, formatVersion);
+            users.put(user.getUsername(), user);
+        }
+        return users;
+    }
+
+    // Same layout as a users.dat entry of the current users version
+    private static void writeUserFields(DataOutputStream out, User user) throws IOException {
+        out.writeByte(user.getVersion());
+        writeString(out, user.getUsername());
+        writeString(out, user.getHashedPassword());
+        writeBytes(out, user.getSalt());
+        KdfParameters kdf = user.getKdfParameters();
+        out.writeByte(kdf.getAlgorithm().getId());
+        out.writeInt(kdf.getCost());
+        out.writeInt(kdf.getBlockSize());
+        out.writeInt(kdf.getParallelism());
+    }
+
+    private static User readUserFields(DataInputStream in, int formatVersion) throws IOException {
+        int userVersion = formatVersion >= 2 ? in.readUnsignedByte() : User.LEGACY_VERSION;
+        String username = readString(in);
+        String hashedPassword = readString(in);
+        byte[] salt = readBytes(in);
+        KdfParameters kdf = KdfParameters.legacyDefault();
+        if (formatVersion >= 3) {
+            KdfParameters.Algorithm algorithm;
+            try {
+                algorithm = KdfParameters.Algorithm.fromId(in.readUnsignedByte());
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+            kdf = new KdfParameters(algorithm, in.readInt(), in.readInt(), in.readInt());
+        }
+        return new User(username, hashedPassword, salt, userVersion, kdf);
+    }
+
+    // A null key check is written as zeros, meaning the key is unknown
+    public static void writeCredentials(DataOutputStream out, List<ServiceCredential> credentials,
+                                        long journalSequence, byte[] keyCheck) throws IOException {
+        out.writeInt(CREDENTIALS_MAGIC);
+        out.writeByte(CREDENTIALS_VERSION);
+        out.writeLong(journalSequence);
+        out.writeInt(credentials.size());
+        out.write(keyCheck != null ? keyCheck : new byte[KEY_CHECK_LENGTH]);
+
+        int[] offsets = new int[credentials.size()];
+        long offset = CREDENTIALS_HEADER_LENGTH;
+        int index = 0;
+        for (ServiceCredential credential : credentials) {
+            if (offset > Integer.MAX_VALUE) {
+                throw new IOException("Credentials file exceeds 2 GB");
+            }
+            offsets[index++] = (int) offset;
+
+            CryptoUtil.EncryptedData encrypted = credential.getEncryptedPassword();
+            byte[] serviceName = credential.getServiceName().getBytes(StandardCharsets.UTF_8);
+            byte[] username = credential.getUsername().getBytes(StandardCharsets.UTF_8);
+            out.writeByte(encrypted.getScheme().getId());
+            out.writeLong(credential.getId());
+            writeBytes(out, serviceName);
+            writeBytes(out, username);
+            writeBytes(out, encrypted.getData());
+            writeBytes(out, encrypted.getIv());
+            offset += 25 + serviceName.length + username.length
+                    + encrypted.getData().length + encrypted.getIv().length;
+        }
+
+        for (int recordOffset : offsets) {
+            out.writeInt(recordOffset);
+        }
+    }
+
+    // Decode every record eagerly; the offset table of version 2 files is not needed for this
+    public static FileManager.CredentialSnapshot readCredentials(DataInputStream in) throws IOException {
+        int version = readHeader(in, CREDENTIALS_MAGIC, CREDENTIALS_VERSION);
+        long journalSequence = in.readLong();
+        int count = readCount(in);
+        byte[] keyCheck = null;
+        if (version >= 3) {
+            keyCheck = new byte[KEY_CHECK_LENGTH];
+            in.readFully(keyCheck);
+        }
+        List<ServiceCredential> credentials = new ArrayList<>(Math.min(count, MAX_INITIAL_CAPACITY));
+        for (int i = 0; i < count; i++) {
+            CryptoUtil.CipherScheme scheme = version >= 4 ? readScheme(in) : CryptoUtil.CipherScheme.AES_CBC;
+            long id = version >= 5 ? in.readLong() : ServiceCredential.legacyId(i);
+            String serviceName = readString(in);
+            String username = readString(in);
+            byte[] data = readBytes(in);
+            byte[] iv = readBytes(in);
+            credentials.add(new ServiceCredential(id, serviceName, username,
+                    new CryptoUtil.EncryptedData(scheme, data, iv)));
+        }
+        return new FileManager.CredentialSnapshot(credentials, journalSequence, normalizeKeyCheck(keyCheck));
+    }
+
+    // Reveal scores as a count followed by id, score and last access time per credential
+    public static void writeAccessStats(DataOutputStream out, AccessStats stats) throws IOException {
+        Map<Long, AccessStats.Score> scores = stats.snapshot(System.currentTimeMillis());
+        out.writeInt(ACCESS_STATS_MAGIC);
+        out.writeByte(ACCESS_STATS_VERSION);
+        out.writeInt(scores.size());
+        for (Map.Entry<Long, AccessStats.Score> entry : scores.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeDouble(entry.getValue().value);
+            out.writeLong(entry.getValue().lastAccessMillis);
+        }
+    }
+
+    public static AccessStats readAccessStats(DataInputStream in) throws IOException {
+        readHeader(in, ACCESS_STATS_MAGIC, ACCESS_STATS_VERSION);
+        int count = readCount(in);
+        AccessStats stats = new AccessStats();
+        for (int i = 0; i < count; i++) {
+            stats.put(in.readLong(), new AccessStats.Score(in.readDouble(), in.readLong()));
+        }
+        return stats;
+    }
+
+    // Read just the key check from the header of a credentials file
+    public static byte[] readKeyCheck(DataInputStream in) throws IOException {
+        int version = readHeader(in, CREDENTIALS_MAGIC, CREDENTIALS_VERSION);
+        if (version < 3) {
+            return null;
+        }
+        in.readLong();
+        in.readInt();
+        byte[] keyCheck = new byte[KEY_CHECK_LENGTH];
+        in.readFully(keyCheck);
+        return normalizeKeyCheck(keyCheck);
+    }
+
+    static CryptoUtil.CipherScheme readScheme(DataInputStream in) throws IOException {
+        try {
+            return CryptoUtil.CipherScheme.fromId(in.readUnsignedByte());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    // An all-zero key check means the key was not recorded
+    static byte[] normalizeKeyCheck(byte[] keyCheck) {
+        if (keyCheck == null) {
+            return null;
+        }
+        for (byte b : keyCheck) {
+            if (b != 0) {
+                return keyCheck;
+            }
+        }
+        return null;
+    }
+
+    private static int readHeader(DataInputStream in, int expectedMagic, int maxVersion) throws IOException {
+        int magic = in.readInt();
+        if (magic != expectedMagic) {
+            throw new IOException("Unrecognized file format");
+        }
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > maxVersion) {
+            throw new IOException("Unsupported format version " + version);
+        }
+        return version;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt record count");
+        }
+        return count;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_LENGTH) {
+            throw new IOException("Corrupt field length " + length);
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+}
@@ -0,0 +1,387 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+// Local HTTP/JSON API over a VaultServer, so scripts can use the vault without spawning the
+// CLI. It binds to the loopback address only and refuses requests that carry an Origin
+// header, which keeps web pages open in a browser from driving it.
+//
+//   POST   /api/register                  {"username", "password"}
+//   POST   /api/login                     {"username", "password"} -> {"token"}
+//   POST   /api/logout
+//   GET    /api/credentials?offset=&limit=
+//   GET    /api/credentials/search?q=&limit=
+//   GET    /api/credentials/{id}
+//   POST   /api/credentials/{id}/reveal   {"masterPassword"} -> {"password"}
+//   POST   /api/credentials               {"service", "username", "password"}
+//   DELETE /api/credentials/{id}
+//
+// Every call but register and login needs "Authorization: Bearer <token>". Requests run on
+// a virtual thread each where the JDK has them, and on a fixed pool otherwise.
+public class VaultHttpApi {
+    public static final int DEFAULT_PORT = 8765;
+    private static final String PREFIX = "/api/";
+    private static final int MAX_BODY_LENGTH = 64 * 1024;
+    private static final int DEFAULT_SEARCH_LIMIT = 20;
+
+    static {
+        // The JDK server writes headers and body separately; with Nagle's algorithm on, every
+        // keep-alive response then waits out the client's delayed ACK, about 40 ms. Read once,
+        // when the first server is created, so it has to be set before that.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final VaultServer vaultServer;
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+
+    public VaultHttpApi(VaultServer vaultServer, int port) throws IOException {
+        this.vaultServer = vaultServer;
+        this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = newRequestExecutor();
+        httpServer.setExecutor(executor);
+        httpServer.createContext(PREFIX, this::handle);
+    }
+
+    public void start() {
+        httpServer.start();
+    }
+
+    // The bound port, useful when started on port 0
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public void stop() {
+        httpServer.stop(1);
+        executor.shutdown();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor is looked up reflectively so the rest of the
+    // code still builds and runs on JDKs without virtual threads
+    private static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "vault-http-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (exchange.getRequestHeaders().containsKey("Origin")) {
+                send(exchange, 403, error("Cross-origin requests are not allowed"));
+                return;
+            }
+            Response response = route(exchange);
+            send(exchange, response.status, response.body);
+        } catch (BadRequestException e) {
+            send(exchange, 400, error(e.getMessage()));
+        } catch (RuntimeException e) {
+            System.err.println("Error handling API request: " + e.getMessage());
+            send(exchange, 500, error("Internal error"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Response route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().substring(PREFIX.length()).split("/");
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        if (path.length == 1 && path[0].equals("register")) {
+            requireMethod(method, "POST");
+            return register(readBody(exchange));
+        }
+        if (path.length == 1 && path[0].equals("login")) {
+            requireMethod(method, "POST");
+            return login(readBody(exchange));
+        }
+
+        String token = bearerToken(exchange);
+        if (path.length == 1 && path[0].equals("logout")) {
+            requireMethod(method, "POST");
+            return vaultServer.logout(token) ? new Response(200, "{}") : unauthorized();
+        }
+        if (path[0].equals("credentials")) {
+            if (path.length == 1 && method.equals("GET")) {
+                return list(token, intParameter(query, "offset", 0), intParameter(query, "limit", Integer.MAX_VALUE));
+            }
+            if (path.length == 1 && method.equals("POST")) {
+                return add(token, readBody(exchange));
+            }
+            if (path.length == 2 && path[1].equals("search")) {
+                requireMethod(method, "GET");
+                return search(token, query.getOrDefault("q", ""), intParameter(query, "limit", DEFAULT_SEARCH_LIMIT));
+            }
+            if (path.length == 2 && method.equals("GET")) {
+                return fetch(token, idParameter(path[1]));
+            }
+            if (path.length == 2 && method.equals("DELETE")) {
+                return delete(token, idParameter(path[1]));
+            }
+            if (path.length == 3 && path[2].equals("reveal")) {
+                requireMethod(method, "POST");
+                return reveal(token, idParameter(path[1]), readBody(exchange));
+            }
+        }
+        return new Response(404, error("No such endpoint"));
+    }
+
+    private Response register(Map<String, String> body) {
+        PasswordManager.RegistrationResult result = vaultServer.registerUser(body.get("username"), body.get("password"));
+        int status = result == PasswordManager.RegistrationResult.SUCCESS ? 201
+                : result == PasswordManager.RegistrationResult.USER_EXISTS ? 409 : 400;
+        return new Response(status, result(result.name()));
+    }
+
+    private Response login(Map<String, String> body) {
+        VaultServer.LoginResult login = vaultServer.login(body.get("username"), body.get("password"));
+        if (login.isSuccess()) {
+            return new Response(200, "{\"token\":" + Json.quote(login.getToken()) + "}");
+        }
+        switch (login.getResult()) {
+            case VAULT_IN_USE:
+                return new Response(409, result(login.getResult().name()));
+            case VAULT_CORRUPTED:
+                return new Response(500, result(login.getResult().name()));
+            case EMPTY_CREDENTIALS:
+                return new Response(400, result(login.getResult().name()));
+            default:
+                // Not saying which of the name or password was wrong
+                return new Response(401, result("INVALID_CREDENTIALS"));
+        }
+    }
+
+    private Response list(String token, int offset, int limit) {
+        return session(token, manager -> {
+            // The page is copied under the repository lock; the total is read separately and
+            // may already count a change another session made in between
+            List<ServiceCredential> page = manager.getCredentialRange(offset, limit);
+            return new Response(200, credentialPage(page, manager.getCredentialView().size()));
+        });
+    }
+
+    private Response search(String token, String query, int limit) {
+        return session(token, manager ->
+                new Response(200, credentialPage(manager.searchCredentials(query, limit), -1)));
+    }
+
+    private Response fetch(String token, long id) {
+        return session(token, manager -> {
+            ServiceCredential credential = manager.findById(id);
+            return credential == null ? notFound() : new Response(200, credentialJson(credential));
+        });
+    }
+
+    private Response reveal(String token, long id, Map<String, String> body) {
+        return session(token, manager -> {
+            ServiceCredential credential = manager.findById(id);
+            if (credential == null) {
+                return notFound();
+            }
+            // Closing the result wipes the decrypted password; the JSON String is unavoidable
+            try (PasswordManager.PasswordRetrievalResult result =
+                         manager.getDecryptedPassword(credential, body.get("masterPassword"))) {
+                if (!result.isSuccess()) {
+                    return credentialFailure(result.getResult());
+                }
+                return new Response(200, "{\"password\":" + Json.quote(result.getPassword()) + "}");
+            }
+        });
+    }
+
+    private Response add(String token, Map<String, String> body) {
+        return session(token, manager -> {
+            PasswordManager.CredentialResult result =
+                    manager.addCredential(body.get("service"), body.get("username"), body.get("password"));
+            return result == PasswordManager.CredentialResult.SUCCESS
+                    ? new Response(201, result(result.name())) : credentialFailure(result);
+        });
+    }
+
+    private Response delete(String token, long id) {
+        return session(token, manager -> {
+            PasswordManager.CredentialResult result = manager.removeById(id);
+            if (result == PasswordManager.CredentialResult.NOT_FOUND) {
+                return notFound();
+            }
+            return result == PasswordManager.CredentialResult.SUCCESS
+                    ? new Response(200, "{}") : credentialFailure(result);
+        });
+    }
+
+    private Response session(String token, Function<PasswordManager, Response> call) {
+        Response response = vaultServer.withSession(token, call);
+        return response != null ? response : unauthorized();
+    }
+
+    private static Response credentialFailure(PasswordManager.CredentialResult result) {
+        switch (result) {
+            case INVALID_MASTER_PASSWORD:
+                return new Response(403, result(result.name()));
+            case NOT_LOGGED_IN:
+                return unauthorized();
+            case ENCRYPTION_ERROR:
+            case IO_ERROR:
+                return new Response(500, result(result.name()));
+            default:
+                return new Response(400, result(result.name()));
+        }
+    }
+
+    // A total of -1 leaves it out, as for search results
+    private static String credentialPage(List<ServiceCredential> credentials, int total) {
+        StringBuilder json = new StringBuilder(64 + credentials.size() * 64);
+        json.append('{');
+        if (total >= 0) {
+            json.append("\"total\":").append(total).append(',');
+        }
+        json.append("\"credentials\":[");
+        for (int i = 0; i < credentials.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(credentialJson(credentials.get(i)));
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String credentialJson(ServiceCredential credential) {
+        return "{\"id\":" + credential.getId()
+                + ",\"service\":" + Json.quote(credential.getServiceName())
+                + ",\"username\":" + Json.quote(credential.getUsername()) + "}";
+    }
+
+    private static Response unauthorized() {
+        return new Response(401, error("Unknown or expired session"));
+    }
+
+    private static Response notFound() {
+        return new Response(404, error("No such credential"));
+    }
+
+    private static String result(String name) {
+        return "{\"result\":" + Json.quote(name) + "}";
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + Json.quote(message) + "}";
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!method.equals(expected)) {
+            throw new BadRequestException("Expected " + expected);
+        }
+    }
+
+    private static String bearerToken(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Bearer ")) {
+            return null;
+        }
+        return header.substring("Bearer ".length()).trim();
+    }
+
+    private static Map<String, String> readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+                if (body.size() > MAX_BODY_LENGTH) {
+                    throw new BadRequestException("Request body too large");
+                }
+            }
+        }
+        try {
+            return Json.parseObject(new String(body.toByteArray(), StandardCharsets.UTF_8));
+        } catch (Json.ParseException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        try {
+            for (String pair : rawQuery.split("&")) {
+                int equals = pair.indexOf('=');
+                String name = equals < 0 ? pair : pair.substring(0, equals);
+                String value = equals < 0 ? "" : pair.substring(equals + 1);
+                parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            throw new BadRequestException("Malformed query string");
+        }
+        return parameters;
+    }
+
+    private static int intParameter(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Malformed " + name);
+        }
+    }
+
+    private static long idParameter(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Malformed credential id");
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static class BadRequestException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BadRequestException(String message) {
+            super(message);
+        }
+    }
+}
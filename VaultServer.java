@@ -0,0 +1,141 @@
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+// Headless host for many concurrent sessions in one JVM. Every session is its own
+// PasswordManager over one shared VaultStore, addressed by a random token handed out at
+// login. Calls on different sessions run in parallel, limited only by the vault locks;
+// calls on the same session are serialized, as a session is single-threaded. Sessions
+// left idle past the timeout are logged out by a background sweep.
+public class VaultServer {
+    private static final long DEFAULT_IDLE_TIMEOUT_MINUTES = 15;
+    private static final int TOKEN_BYTES = 32;
+
+    private final VaultStore store;
+    private final long idleTimeoutNanos;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService sweeper;
+
+    // Sessions share the JVM's store with any other frontend, so anticloud.writeBehindMillis
+    // applies to the server too
+    public VaultServer() {
+        this(VaultStore.shared(), DEFAULT_IDLE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public VaultServer(VaultStore store, long idleTimeout, TimeUnit unit) {
+        this.store = store;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "vault-session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, unit.toSeconds(idleTimeout) / 4);
+        sweeper.scheduleWithFixedDelay(this::expireIdleSessions, period, period, TimeUnit.SECONDS);
+    }
+
+    public PasswordManager.RegistrationResult registerUser(String username, String password) {
+        return new PasswordManager(store).registerUser(username, password);
+    }
+
+    // Log in a new session; the token is set only on success
+    public LoginResult login(String username, String password) {
+        PasswordManager session = new PasswordManager(store);
+        PasswordManager.LoginResult result = session.login(username, password);
+        if (result != PasswordManager.LoginResult.SUCCESS) {
+            return new LoginResult(result, null);
+        }
+        String token = newToken();
+        sessions.put(token, new Session(session));
+        return new LoginResult(result, token);
+    }
+
+    // Run a call on a session, or return null if the token is unknown or expired
+    public <T> T withSession(String token, Function<PasswordManager, T> call) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        synchronized (session) {
+            if (session.closed) {
+                return null;
+            }
+            session.lastUsed = System.nanoTime();
+            return call.apply(session.manager);
+        }
+    }
+
+    public boolean logout(String token) {
+        Session session = token == null ? null : sessions.remove(token);
+        if (session == null) {
+            return false;
+        }
+        close(session);
+        return true;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public VaultStore getStore() {
+        return store;
+    }
+
+    // Log out every session and stop the idle sweep
+    public void shutdown() {
+        sweeper.shutdownNow();
+        for (String token : new ArrayList<>(sessions.keySet())) {
+            logout(token);
+        }
+    }
+
+    private void expireIdleSessions() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            if (now - entry.getValue().lastUsed > idleTimeoutNanos && sessions.remove(entry.getKey(), entry.getValue())) {
+                close(entry.getValue());
+            }
+        }
+    }
+
+    private static void close(Session session) {
+        synchronized (session) {
+            session.closed = true;
+            session.manager.logout();
+        }
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static class Session {
+        final PasswordManager manager;
+        volatile long lastUsed = System.nanoTime();
+        boolean closed;
+
+        Session(PasswordManager manager) {
+            this.manager = manager;
+        }
+    }
+
+    // Result class for a server login
+    public static class LoginResult {
+        private final PasswordManager.LoginResult result;
+        private final String token;
+
+        public LoginResult(PasswordManager.LoginResult result, String token) {
+            this.result = result;
+            this.token = token;
+        }
+
+        public PasswordManager.LoginResult getResult() { return result; }
+        public String getToken() { return token; }
+        public boolean isSuccess() { return result == PasswordManager.LoginResult.SUCCESS; }
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Vaults open in this JVM, shared by every session that logs in to the same account.
+// Each account maps to one of a fixed set of read/write locks by the hash of its name,
+// so sessions of different accounts almost never contend and there is no global lock,
+// while the lock count stays bounded however many accounts are open.
+//
+// By default every change is on disk before the call making it returns. In write-behind
+// mode changes return once they are in memory and a background thread syncs the journals
+// of changed vaults once per interval, so a crash loses at most the last interval's edits.
+// Vaults are also synced when a session logs out and when the JVM shuts down.
+public class VaultStore {
+    private static final int STRIPES = 64;
+    // Write-behind interval for the shared store; 0 writes through
+    private static final VaultStore SHARED = new VaultStore(
+            Long.getLong("anticloud.writeBehindMillis", 0), TimeUnit.MILLISECONDS);
+
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+    private final Map<String, UserVault> openVaults = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    public VaultStore() {
+        this(0, TimeUnit.MILLISECONDS);
+    }
+
+    // A store that syncs changed vaults every interval rather than on every change
+    public VaultStore(long writeBehindInterval, TimeUnit unit) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = Metrics.newReadWriteLock();
+        }
+        if (writeBehindInterval <= 0) {
+            flusher = null;
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "vault-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAll, writeBehindInterval, writeBehindInterval, unit);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushAll, "vault-write-behind-shutdown"));
+    }
+
+    // The store used by sessions that are not given one
+    public static VaultStore shared() {
+        return SHARED;
+    }
+
+    public ReadWriteLock lockFor(String username) {
+        int hash = username.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    // Attach a session to the account's vault, opening it if no session has it open yet.
+    // Returns null if another process has the vault open. The caller must still check that
+    // its keys unlock the vault, as another session may have changed the password since
+    // the caller read the account record.
+    public UserVault attach(User user, CryptoUtil.KeyMaterial keys) {
+        String username = user.getUsername();
+        ReadWriteLock lock = lockFor(username);
+        lock.writeLock().lock();
+        try {
+            UserVault vault = openVaults.get(username);
+            if (vault == null) {
+                vault = UserVault.open(user, keys, lock);
+                if (vault == null) {
+                    return null;
+                }
+                openVaults.put(username, vault);
+            }
+            vault.sessions++;
+            return vault;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Detach a session, closing the vault when it was the last one
+    public void detach(UserVault vault) {
+        vault.getLock().writeLock().lock();
+        try {
+            if (--vault.sessions == 0) {
+                openVaults.remove(vault.getUsername());
+                vault.close();
+            }
+        } finally {
+            vault.getLock().writeLock().unlock();
+        }
+    }
+
+    public boolean isWriteBehind() {
+        return flusher != null;
+    }
+
+    // Sync every open vault with unsynced changes. A vault closed meanwhile was synced by
+    // closing it. Failures are retried on the next run.
+    public void flushAll() {
+        for (UserVault vault : openVaults.values()) {
+            CredentialJournal journal = vault.getJournal();
+            if (!journal.isDirty()) {
+                continue;
+            }
+            try {
+                journal.sync();
+            } catch (RuntimeException e) {
+                System.err.println("Error flushing vault of " + vault.getUsername() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public int getOpenVaultCount() {
+        return openVaults.size();
+    }
+}
@@ -0,0 +1,141 @@
+import anticloud.bench.Subject;
+import java.io.StringReader;
+import java.util.*;
+import javax.crypto.SecretKey;
+
+// Default-package side of anticloud.bench.Subject; see there
+public class BenchmarkSubject implements Subject {
+
+    @Override
+    public byte[] generateSalt() {
+        return CryptoUtil.generateSalt();
+    }
+
+    @Override
+    public Object deriveKeyMaterial(char[] password, byte[] salt) {
+        CryptoUtil.KeyMaterial keys = CryptoUtil.deriveKeyMaterial(password, salt,
+                KdfCalibrator.registrationParameters());
+        byte[] verifier = keys.getVerifier();
+        keys.destroy();
+        return verifier;
+    }
+
+    @Override
+    public Object newUser(String username, char[] password) {
+        return new User(username, password);
+    }
+
+    @Override
+    public boolean unlock(Object user, char[] password) {
+        CryptoUtil.KeyMaterial keys = ((User) user).unlock(password);
+        if (keys == null) {
+            return false;
+        }
+        keys.destroy();
+        return true;
+    }
+
+    @Override
+    public SecretKey deriveKey(char[] password, byte[] salt) {
+        CryptoUtil.KeyMaterial keys = CryptoUtil.deriveKeyMaterial(password, salt,
+                KdfCalibrator.registrationParameters());
+        try {
+            return CryptoUtil.copyKey(keys.getEncryptionKey());
+        } finally {
+            keys.destroy();
+        }
+    }
+
+    @Override
+    public Object encrypt(byte[] plaintext, SecretKey key, byte[] aad) {
+        return CryptoUtil.encrypt(plaintext, key, aad);
+    }
+
+    @Override
+    public byte[] decrypt(Object encrypted, SecretKey key, byte[] aad) {
+        return CryptoUtil.decryptBytes((CryptoUtil.EncryptedData) encrypted, key, aad);
+    }
+
+    @Override
+    public Object generateCredentials(int count, SecretKey key) {
+        List<ServiceCredential> credentials = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String serviceName = "service-" + i;
+            String username = "user" + i + "@example.com";
+            credentials.add(new ServiceCredential(i + 1, serviceName, username, CryptoUtil.encrypt(
+                    "password-" + i, key, CryptoUtil.credentialAad(serviceName, username))));
+        }
+        return credentials;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void saveCredentials(String username, Object credentials) {
+        List<ServiceCredential> list = (List<ServiceCredential>) credentials;
+        FileManager.saveUserCredentials(username, list, list.size(), null);
+    }
+
+    @Override
+    public Object loadCredentials(String username) {
+        return FileManager.loadUserCredentials(username).getCredentials();
+    }
+
+    @Override
+    public Object newSession() {
+        return new PasswordManager(new VaultStore());
+    }
+
+    @Override
+    public boolean register(Object session, String username, String password) {
+        return ((PasswordManager) session).registerUser(username, password) == PasswordManager.RegistrationResult.SUCCESS;
+    }
+
+    @Override
+    public boolean login(Object session, String username, String password) {
+        return ((PasswordManager) session).login(username, password) == PasswordManager.LoginResult.SUCCESS;
+    }
+
+    @Override
+    public void logout(Object session) {
+        ((PasswordManager) session).logout();
+    }
+
+    @Override
+    public void fill(Object session, int count) {
+        StringBuilder csv = new StringBuilder("service,username,password\n");
+        for (int i = 0; i < count; i++) {
+            csv.append("service-").append(i).append(",user").append(i).append("@example.com,password-")
+                    .append(i).append('\n');
+        }
+        CredentialTransfer.Report report = ((PasswordManager) session).importCredentials(
+                new StringReader(csv.toString()), CredentialTransfer.Format.CSV);
+        if (!report.isSuccess()) {
+            throw new IllegalStateException("Import failed: " + report.getResult() + " " + report.getError());
+        }
+    }
+
+    @Override
+    public long idAt(Object session, int index) {
+        return ((PasswordManager) session).getCredentialView().get(index).getId();
+    }
+
+    @Override
+    public Object findById(Object session, long id) {
+        return ((PasswordManager) session).findById(id);
+    }
+
+    @Override
+    public Object findByService(Object session, String serviceName) {
+        return ((PasswordManager) session).findByService(serviceName);
+    }
+
+    @Override
+    public Object findByServicePrefix(Object session, String prefix) {
+        return ((PasswordManager) session).findByServicePrefix(prefix);
+    }
+
+    @Override
+    public Object search(Object session, String query, int limit) {
+        return ((PasswordManager) session).searchCredentials(query, limit);
+    }
+}
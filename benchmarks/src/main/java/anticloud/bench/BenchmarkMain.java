@@ -0,0 +1,18 @@
+package anticloud.bench;
+
+import java.util.*;
+
+// Runs JMH, writing results as JSON to jmh-result.json unless a result format is given, so
+// runs can be compared by tools. Takes the usual JMH options, e.g. a benchmark name regex.
+public final class BenchmarkMain {
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf") && !arguments.contains("-rff")) {
+            arguments.addAll(0, Arrays.asList("-rf", "json", "-rff", "jmh-result.json"));
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+    }
+}
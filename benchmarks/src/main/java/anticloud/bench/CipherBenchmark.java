@@ -0,0 +1,45 @@
+package anticloud.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.*;
+
+// Encrypting and decrypting one credential, for a typical password and a long secret
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CipherBenchmark {
+    @Param({"16", "1024"})
+    public int plaintextLength;
+
+    private Subject subject;
+    private SecretKey key;
+    private byte[] plaintext;
+    private byte[] aad;
+    private Object encrypted;
+
+    @Setup
+    public void setUp() throws Exception {
+        subject = Subjects.get();
+        key = subject.deriveKey("correct horse battery staple".toCharArray(), subject.generateSalt());
+        plaintext = new byte[plaintextLength];
+        Arrays.fill(plaintext, (byte) 'x');
+        aad = "example.com\u0000user@example.com".getBytes(StandardCharsets.UTF_8);
+        encrypted = subject.encrypt(plaintext, key, aad);
+    }
+
+    @Benchmark
+    public Object encrypt() {
+        return subject.encrypt(plaintext, key, aad);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return subject.decrypt(encrypted, key, aad);
+    }
+}
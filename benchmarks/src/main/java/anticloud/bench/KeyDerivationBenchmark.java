@@ -0,0 +1,41 @@
+package anticloud.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Key derivation as registration and login run it: one KDF run with the parameters a new
+// account gets, expanded into the verifier and encryption key, and the full password check
+// of an account record. The parameters are calibrated to a time budget on this machine (see
+// KdfCalibrator and anticloud.kdf), so these show what a login costs and how close the
+// calibration comes to its budget rather than the raw speed of HMAC.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KeyDerivationBenchmark {
+    private static final char[] PASSWORD = "correct horse battery staple".toCharArray();
+
+    private Subject subject;
+    private byte[] salt;
+    private Object user;
+
+    @Setup
+    public void setUp() throws Exception {
+        subject = Subjects.get();
+        salt = subject.generateSalt();
+        // Calibrates the registration parameters once, outside the measurement
+        user = subject.newUser("benchmark", PASSWORD);
+    }
+
+    @Benchmark
+    public Object deriveKeyMaterial() {
+        return subject.deriveKeyMaterial(PASSWORD, salt);
+    }
+
+    @Benchmark
+    public boolean unlock() {
+        return subject.unlock(user, PASSWORD);
+    }
+}
@@ -0,0 +1,42 @@
+package anticloud.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A whole login: reading the account record, the password KDF at the calibrated cost, and
+// opening the vault with its journal, then closing it again
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LoginBenchmark {
+    private static final String PASSWORD = "Correct-Horse-Battery-9";
+
+    @Param({"0", "10000"})
+    public int vaultSize;
+
+    private Subject subject;
+    private Object session;
+    private String username;
+
+    @Setup
+    public void setUp() throws Exception {
+        subject = Subjects.get();
+        session = subject.newSession();
+        username = "login-" + vaultSize;
+        if (!subject.register(session, username, PASSWORD) || !subject.login(session, username, PASSWORD)) {
+            throw new IllegalStateException("Cannot set up account " + username);
+        }
+        subject.fill(session, vaultSize);
+        subject.logout(session);
+    }
+
+    @Benchmark
+    public boolean loginAndLogout() {
+        boolean success = subject.login(session, username, PASSWORD);
+        subject.logout(session);
+        return success;
+    }
+}
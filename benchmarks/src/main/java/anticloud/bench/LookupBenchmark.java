@@ -0,0 +1,79 @@
+package anticloud.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Finding credentials in an open vault. Each call looks up a different entry so the
+// lookups are not served from one hot cache line.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LookupBenchmark {
+    private static final String PASSWORD = "Correct-Horse-Battery-9";
+    private static final int KEYS = 1024;
+
+    @Param({"1000", "100000"})
+    public int vaultSize;
+
+    private Subject subject;
+    private Object session;
+    private final long[] ids = new long[KEYS];
+    private final String[] services = new String[KEYS];
+    private final String[] prefixes = new String[KEYS];
+    private final String[] queries = new String[KEYS];
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        subject = Subjects.get();
+        session = subject.newSession();
+        String username = "lookup-" + vaultSize;
+        if (!subject.register(session, username, PASSWORD) || !subject.login(session, username, PASSWORD)) {
+            throw new IllegalStateException("Cannot set up account " + username);
+        }
+        subject.fill(session, vaultSize);
+        Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            int index = random.nextInt(vaultSize);
+            ids[i] = subject.idAt(session, index);
+            services[i] = "service-" + index;
+            prefixes[i] = services[i].substring(0, Math.min(services[i].length(), 10));
+            // A typo, as the search is meant to tolerate them
+            queries[i] = "servce-" + index;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        subject.logout(session);
+    }
+
+    private int nextKey() {
+        next = (next + 1) & (KEYS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public Object findById() {
+        return subject.findById(session, ids[nextKey()]);
+    }
+
+    @Benchmark
+    public Object findByService() {
+        return subject.findByService(session, services[nextKey()]);
+    }
+
+    @Benchmark
+    public Object findByServicePrefix() {
+        return subject.findByServicePrefix(session, prefixes[nextKey()]);
+    }
+
+    @Benchmark
+    public Object search() {
+        return subject.search(session, queries[nextKey()], 20);
+    }
+}
@@ -0,0 +1,51 @@
+package anticloud.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Saving and loading a whole vault snapshot. Saves include forcing the file to disk. Vaults
+// of a megabyte or more are memory-mapped and decoded lazily on load, so loadAndRead also
+// touches every entry to show what reading all of them costs.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PersistenceBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int vaultSize;
+
+    private Subject subject;
+    private Object credentials;
+    private String savedUser;
+
+    @Setup
+    public void setUp() throws Exception {
+        subject = Subjects.get();
+        SecretKey key = subject.deriveKey("correct horse battery staple".toCharArray(), subject.generateSalt());
+        credentials = subject.generateCredentials(vaultSize, key);
+        savedUser = "load-" + vaultSize;
+        subject.saveCredentials(savedUser, credentials);
+    }
+
+    @Benchmark
+    public void save() {
+        subject.saveCredentials("save-" + vaultSize, credentials);
+    }
+
+    @Benchmark
+    public Object load() {
+        return subject.loadCredentials(savedUser);
+    }
+
+    @Benchmark
+    public void loadAndRead(Blackhole blackhole) {
+        for (Object credential : (List<?>) subject.loadCredentials(savedUser)) {
+            blackhole.consume(credential);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package anticloud.bench;
+
+import javax.crypto.SecretKey;
+
+// The parts of the password manager the benchmarks exercise. The application lives in the
+// default package, which code in a named package (as JMH requires) cannot refer to, so the
+// default-package BenchmarkSubject implements this and is loaded by name once per fork.
+// Application objects are passed around as opaque handles.
+public interface Subject {
+    byte[] generateSalt();
+
+    // One KDF run with the parameters a new account gets, expanded into the login keys
+    Object deriveKeyMaterial(char[] password, byte[] salt);
+
+    // A new account record for a password, to unlock
+    Object newUser(String username, char[] password);
+
+    // Check a password against an account record as login does; true if it matches
+    boolean unlock(Object user, char[] password);
+
+    // The encryption key login derives for a password, for benchmarks that need a real key
+    SecretKey deriveKey(char[] password, byte[] salt);
+
+    Object encrypt(byte[] plaintext, SecretKey key, byte[] aad);
+
+    byte[] decrypt(Object encrypted, SecretKey key, byte[] aad);
+
+    // A list of count credentials encrypted under key, for saving
+    Object generateCredentials(int count, SecretKey key);
+
+    void saveCredentials(String username, Object credentials);
+
+    // Load a saved vault, returning its credential list
+    Object loadCredentials(String username);
+
+    // A session on a vault store of its own
+    Object newSession();
+
+    boolean register(Object session, String username, String password);
+
+    boolean login(Object session, String username, String password);
+
+    void logout(Object session);
+
+    // Import count generated credentials into the session's vault
+    void fill(Object session, int count);
+
+    // Id of the credential at a position of the session's vault
+    long idAt(Object session, int index);
+
+    Object findById(Object session, long id);
+
+    Object findByService(Object session, String serviceName);
+
+    Object findByServicePrefix(Object session, String prefix);
+
+    Object search(Object session, String query, int limit);
+}
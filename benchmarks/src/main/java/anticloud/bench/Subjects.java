@@ -0,0 +1,33 @@
+package anticloud.bench;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Loads the application adapter. Every fork gets a fresh data directory, set before any
+// application class is loaded, so benchmarks never touch real vaults.
+final class Subjects {
+    private static Subject subject;
+
+    private Subjects() {
+    }
+
+    static synchronized Subject get() throws Exception {
+        if (subject == null) {
+            Path dataDir = Files.createTempDirectory("anticloud-bench");
+            System.setProperty("anticloud.dataDir", dataDir.toString());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteRecursively(dataDir)));
+            subject = (Subject) Class.forName("BenchmarkSubject").getDeclaredConstructor().newInstance();
+        }
+        return subject;
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Error removing benchmark data: " + e.getMessage());
+        }
+    }
+}